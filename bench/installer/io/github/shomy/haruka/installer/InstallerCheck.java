@@ -0,0 +1,491 @@
+package io.github.shomy.haruka.installer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Host checks of the installer (PatchPlanner and the classes under it), on jars built here the
+ * way services.jar is laid out:
+ * - stored dex entries, as zipalign leaves them, and deflated ones
+ * - deflated entries written with a data descriptor after their data
+ * - an archive comment
+ *
+ * Without arguments, runs every check and exits with 1 if any fails:
+ * - plan finds the dex entries defining a patched class, and only those.
+ * - extract renames them to classes.dex, classes2.dex... in order.
+ * - replace swaps them in, keeping their compression method. Stored ones are 4 bytes aligned
+ *   whatever comes before them, and every other entry is copied byte for byte, data
+ *   descriptors included, so both ZipFile and ZipInputStream read the jar back.
+ * - replace adds the extra dex files dexpatcher splits its output into after the last one.
+ * - zip64 jars are rejected before anything is written, so the module can patch the whole jar.
+ *
+ * The other modes are used by scripts/run_installer_check.sh to run the module's own
+ * customize.sh on these jars:
+ *   fixtures <dir>                     writes services.jar, services64.jar (zip64) and patch.dex
+ *   dexpatch <out dir> <jar> <patch>...
+ *                                      stands in for dexpatcher: writes every dex file of the jar
+ *                                      to the out dir, marked as patched
+ *   verify <jar> <entry>...            checks the jar reads back, and that only the given
+ *                                      dex entries are marked as patched
+ *
+ * Usage: scripts/run_installer_check.sh
+ */
+public final class InstallerCheck {
+    // Appended by the dexpatcher stand-in to the dex files it "patches"
+    private static final byte[] PATCHED = "HARUKA-PATCHED".getBytes(StandardCharsets.US_ASCII);
+    // ZipEntry flag of entries followed by a data descriptor
+    private static final int DATA_DESCRIPTOR_FLAG = 0x08;
+    // Entries of the zip64 jar, one more than a zip without zip64 records can hold
+    private static final int ZIP64_ENTRIES = 0x10000;
+
+    private static final String COMPUTER_ENGINE = "Lcom/android/server/pm/ComputerEngine;";
+    private static final String RECONCILE_PACKAGE_UTILS = "Lcom/android/server/pm/ReconcilePackageUtils;";
+
+    private final File dir;
+    private int failures = 0;
+
+    private InstallerCheck(File dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("fixtures")) {
+            File out = new File(args[1]);
+            out.mkdirs();
+            writeServicesJar(new File(out, "services.jar"), 0);
+            writeZip64Jar(new File(out, "services64.jar"));
+            Files.write(new File(out, "patch.dex").toPath(), patchDex());
+        } else if (args.length >= 3 && args[0].equals("dexpatch")) {
+            dexpatch(new File(args[1]), new File(args[2]));
+        } else if (args.length >= 2 && args[0].equals("verify")) {
+            List<String> patched = Arrays.asList(args).subList(2, args.length);
+            InstallerCheck check = new InstallerCheck(null);
+            check.verifyPatched(new File(args[1]), patched);
+            System.exit(check.failures == 0 ? 0 : 1);
+        } else if (args.length == 1) {
+            InstallerCheck check = new InstallerCheck(new File(args[0]));
+            check.dir.mkdirs();
+            System.exit(check.run() ? 0 : 1);
+        } else {
+            System.err.println("Usage: InstallerCheck <work dir>");
+            System.err.println("       InstallerCheck fixtures <dir>");
+            System.err.println("       InstallerCheck dexpatch <out dir> <jar> <patch.dex>...");
+            System.err.println("       InstallerCheck verify <jar> <patched entry>...");
+            System.exit(2);
+        }
+    }
+
+    private boolean run() throws IOException {
+        File patch = new File(dir, "patch.dex");
+        Files.write(patch.toPath(), patchDex());
+        List<String> patches = Collections.singletonList(patch.getPath());
+
+        checkPlan(patches);
+        checkExtract();
+        for (int misalignment = 0; misalignment < 4; misalignment++) {
+            checkReplace(misalignment);
+        }
+        checkReplaceSplit();
+        checkZip64(patches);
+
+        System.out.println(failures == 0 ? "[i] Installer checks passed" : "[!] " + failures + " installer checks failed");
+        return failures == 0;
+    }
+
+    private void checkPlan(List<String> patches) throws IOException {
+        File jar = new File(dir, "plan.jar");
+        writeServicesJar(jar, 0);
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            ZipDirectory directory = ZipDirectory.read(in);
+            expect("the fixture has stored and data descriptor entries",
+                    directory.find("classes2.dex").method == ZipDirectory.STORED
+                            && (directory.find("classes3.dex").flags & DATA_DESCRIPTOR_FLAG) != 0
+                            && (directory.find("res/strings.txt").flags & DATA_DESCRIPTOR_FLAG) != 0,
+                    "");
+        }
+        List<String> targets = PatchPlanner.plan(jar, patches);
+        expect("plan finds the dex entries defining a patched class",
+                targets.equals(Arrays.asList("classes2.dex", "classes3.dex")), targets);
+    }
+
+    private void checkExtract() throws IOException {
+        File jar = new File(dir, "extract.jar");
+        File out = new File(dir, "targets.jar");
+        writeServicesJar(jar, 0);
+        PatchPlanner.extract(jar, out, Arrays.asList("classes2.dex", "classes3.dex"));
+
+        try (ZipFile zip = new ZipFile(out)) {
+            expect("extract renames the targets in order",
+                    Arrays.equals(read(zip, "classes.dex"), dex(COMPUTER_ENGINE))
+                            && Arrays.equals(read(zip, "classes2.dex"), dex(RECONCILE_PACKAGE_UTILS))
+                            && zip.size() == 2,
+                    names(zip));
+        }
+    }
+
+    /*
+     * @param misalignment Length of a stored entry before the replaced ones, so their data
+     * starts at every offset modulo 4 across the calls.
+     */
+    private void checkReplace(int misalignment) throws IOException {
+        File jar = new File(dir, "replace" + misalignment + ".jar");
+        writeServicesJar(jar, misalignment);
+        byte[] original = Files.readAllBytes(jar.toPath());
+        Map<String, byte[]> before = localRecords(jar);
+
+        File patched = patchedDirectory("replace" + misalignment, dex(COMPUTER_ENGINE), dex(RECONCILE_PACKAGE_UTILS));
+        PatchPlanner.replace(jar, patched, Arrays.asList("classes2.dex", "classes3.dex"));
+
+        String name = "replace (misalignment " + misalignment + ")";
+        verifyPatched(jar, Arrays.asList("classes2.dex", "classes3.dex"));
+        checkMethodsAndAlignment(name, jar);
+        expect(name + " copies the other entries byte for byte", sameRecords(before, localRecords(jar),
+                Arrays.asList("classes2.dex", "classes3.dex")), "");
+        try (ZipFile zip = new ZipFile(jar)) {
+            expect(name + " keeps the comment", "Haruka fixture".equals(zip.getComment()), zip.getComment());
+        }
+        expect(name + " changes the jar", !Arrays.equals(original, Files.readAllBytes(jar.toPath())), "");
+    }
+
+    private void checkReplaceSplit() throws IOException {
+        File jar = new File(dir, "split.jar");
+        writeServicesJar(jar, 1);
+        File patched = patchedDirectory("split", dex(COMPUTER_ENGINE), dex(RECONCILE_PACKAGE_UTILS),
+                dex("Lio/github/shomy/haruka/Haruka;"));
+        PatchPlanner.replace(jar, patched, Arrays.asList("classes2.dex", "classes3.dex"));
+
+        verifyPatched(jar, Arrays.asList("classes2.dex", "classes3.dex", "classes4.dex"));
+        checkMethodsAndAlignment("replace with a split dex", jar);
+        try (ZipFile zip = new ZipFile(jar)) {
+            List<String> names = names(zip);
+            expect("replace adds the split dex after the last one",
+                    names.get(names.size() - 1).equals("classes4.dex")
+                            && zip.getEntry("classes4.dex").getMethod() == ZipEntry.STORED,
+                    names);
+        }
+    }
+
+    private void checkZip64(List<String> patches) throws IOException {
+        File jar = new File(dir, "zip64.jar");
+        writeZip64Jar(jar);
+        byte[] original = Files.readAllBytes(jar.toPath());
+
+        boolean rejected = false;
+        try {
+            PatchPlanner.plan(jar, patches);
+        } catch (IOException e) {
+            rejected = e.getMessage().contains("Zip64");
+        }
+        expect("plan rejects zip64 jars", rejected, "");
+
+        rejected = false;
+        File patched = patchedDirectory("zip64", dex(COMPUTER_ENGINE));
+        try {
+            PatchPlanner.replace(jar, patched, Collections.singletonList("classes2.dex"));
+        } catch (IOException e) {
+            rejected = e.getMessage().contains("Zip64");
+        }
+        expect("replace rejects zip64 jars, leaving them untouched",
+                rejected && Arrays.equals(original, Files.readAllBytes(jar.toPath()))
+                        && !new File(jar.getPath() + ".tmp").exists(),
+                "");
+    }
+
+    /*
+     * Replaced entries keep the method they had, stored ones are aligned, and none of them
+     * has a data descriptor since the sizes are known upfront.
+     */
+    private void checkMethodsAndAlignment(String name, File jar) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            ZipDirectory directory = ZipDirectory.read(in);
+            ZipDirectory.Entry stored = directory.find("classes2.dex");
+            ZipDirectory.Entry deflated = directory.find("classes3.dex");
+            expect(name + " keeps the compression methods",
+                    stored.method == ZipDirectory.STORED && deflated.method == ZipDirectory.DEFLATED, "");
+            expect(name + " writes no data descriptor",
+                    (stored.flags & DATA_DESCRIPTOR_FLAG) == 0 && (deflated.flags & DATA_DESCRIPTOR_FLAG) == 0, "");
+
+            for (ZipDirectory.Entry entry : directory.entries) {
+                if (entry.method == ZipDirectory.STORED && entry.name.endsWith(".dex")
+                        && !entry.name.equals("classes.dex")) {
+                    long offset = dataOffset(in, entry);
+                    expect(name + " aligns " + entry.name, offset % 4 == 0, "data at " + offset);
+                }
+            }
+        }
+    }
+
+    /*
+     * Checks that the jar reads back entry by entry, both from the central directory and from
+     * the local headers, and that exactly the given dex entries are marked as patched.
+     */
+    private void verifyPatched(File jar, List<String> patched) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                contents.put(entry.getName(), read(zip, entry.getName()));
+            }
+        }
+
+        int streamed = 0;
+        boolean same = true;
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(jar))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                same &= Arrays.equals(contents.get(entry.getName()), readAll(in));
+                streamed++;
+            }
+        }
+        expect(jar.getName() + " reads back from the local headers", same && streamed == contents.size(),
+                streamed + " of " + contents.size() + " entries");
+
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            if (!entry.getKey().endsWith(".dex"))
+                continue;
+            boolean marked = isMarked(entry.getValue());
+            expect(jar.getName() + ": " + entry.getKey() + (marked ? " is" : " isn't") + " patched",
+                    marked == patched.contains(entry.getKey()), "");
+        }
+        for (String name : patched) {
+            expect(jar.getName() + " has " + name, contents.containsKey(name), "");
+        }
+    }
+
+    private void expect(String check, boolean ok, Object details) {
+        String suffix = ok || details.toString().isEmpty() ? "" : " (" + details + ")";
+        System.out.println((ok ? "  ok      " : "  FAILED  ") + check + suffix);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    /*
+     * Writes a jar laid out like services.jar:
+     *   META-INF/MANIFEST.MF   deflated, data descriptor
+     *   classes.dex            stored, unrelated classes
+     *   pad                    stored, misalignment bytes
+     *   classes2.dex           stored, defines ComputerEngine
+     *   classes3.dex           deflated, data descriptor, defines ReconcilePackageUtils
+     *   res/strings.txt        deflated, data descriptor
+     */
+    static void writeServicesJar(File file, int misalignment) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            zip.setComment("Haruka fixture");
+            putDeflated(zip, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n".getBytes(StandardCharsets.US_ASCII));
+            putStored(zip, "classes.dex", dex("Lcom/android/server/SystemServer;", "Lcom/android/server/Watchdog;"));
+            putStored(zip, "pad", new byte[misalignment]);
+            putStored(zip, "classes2.dex", dex(COMPUTER_ENGINE));
+            putDeflated(zip, "classes3.dex", dex(RECONCILE_PACKAGE_UTILS));
+            putDeflated(zip, "res/strings.txt", "haruka".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /*
+     * Writes a jar with too many entries for a plain end of central directory record,
+     * so ZipOutputStream adds the zip64 ones.
+     */
+    static void writeZip64Jar(File file) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            putStored(zip, "classes.dex", dex("Lcom/android/server/SystemServer;"));
+            putStored(zip, "classes2.dex", dex(COMPUTER_ENGINE));
+            for (int i = 0; i < ZIP64_ENTRIES; i++) {
+                putStored(zip, "res/" + i, new byte[0]);
+            }
+        }
+    }
+
+    static byte[] patchDex() {
+        return dex(COMPUTER_ENGINE, RECONCILE_PACKAGE_UTILS, "Lio/github/shomy/haruka/Haruka;");
+    }
+
+    /*
+     * Stands in for dexpatcher: writes every dex file of the jar to the out dir, renamed in
+     * order like dexpatcher does, and marked as patched.
+     */
+    private static void dexpatch(File outDir, File jar) throws IOException {
+        outDir.mkdirs();
+        List<byte[]> dexFiles = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (int i = 1; zip.getEntry(dexName(i)) != null; i++) {
+                dexFiles.add(read(zip, dexName(i)));
+            }
+        }
+        for (int i = 0; i < dexFiles.size(); i++) {
+            Files.write(new File(outDir, dexName(i + 1)).toPath(), mark(dexFiles.get(i)));
+        }
+    }
+
+    private File patchedDirectory(String name, byte[]... dexFiles) throws IOException {
+        File patched = new File(dir, name + "-patched");
+        patched.mkdirs();
+        for (int i = 0; i < dexFiles.length; i++) {
+            Files.write(new File(patched, dexName(i + 1)).toPath(), mark(dexFiles[i]));
+        }
+        return patched;
+    }
+
+    /*
+     * Builds a dex file defining the given classes. Only what DexClasses reads is filled in:
+     * the magic, and the string_ids, type_ids and class_defs tables.
+     */
+    static byte[] dex(String... descriptors) {
+        int count = descriptors.length;
+        int stringIds = 0x70;
+        int typeIds = stringIds + count * 4;
+        int classDefs = typeIds + count * 4;
+        int data = classDefs + count * 32;
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        int[] stringOffsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = descriptors[i].getBytes(StandardCharsets.US_ASCII);
+            stringOffsets[i] = data + strings.size();
+            // uleb128 utf16_size, then the NUL terminated MUTF-8 string
+            strings.write(bytes.length);
+            strings.write(bytes, 0, bytes.length);
+            strings.write(0);
+        }
+
+        ByteBuffer dex = ByteBuffer.allocate(data + strings.size()).order(ByteOrder.LITTLE_ENDIAN);
+        dex.put("dex\n035\0".getBytes(StandardCharsets.US_ASCII));
+        dex.putInt(0x20, data + strings.size());
+        dex.putInt(0x38, count);
+        dex.putInt(0x3c, stringIds);
+        dex.putInt(0x40, count);
+        dex.putInt(0x44, typeIds);
+        dex.putInt(0x60, count);
+        dex.putInt(0x64, classDefs);
+        for (int i = 0; i < count; i++) {
+            dex.putInt(stringIds + i * 4, stringOffsets[i]);
+            dex.putInt(typeIds + i * 4, i);
+            dex.putInt(classDefs + i * 32, i);
+        }
+        dex.position(data);
+        dex.put(strings.toByteArray());
+        return dex.array();
+    }
+
+    private static byte[] mark(byte[] dex) {
+        byte[] marked = Arrays.copyOf(dex, dex.length + PATCHED.length);
+        System.arraycopy(PATCHED, 0, marked, dex.length, PATCHED.length);
+        return marked;
+    }
+
+    private static boolean isMarked(byte[] dex) {
+        return dex.length >= PATCHED.length
+                && Arrays.equals(Arrays.copyOfRange(dex, dex.length - PATCHED.length, dex.length), PATCHED);
+    }
+
+    private static void putStored(ZipOutputStream zip, String name, byte[] contents) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(contents.length);
+        entry.setCompressedSize(contents.length);
+        entry.setCrc(crc.getValue());
+        entry.setTime(0);
+        zip.putNextEntry(entry);
+        zip.write(contents);
+        zip.closeEntry();
+    }
+
+    // ZipOutputStream doesn't know the sizes of deflated entries upfront, so it writes them
+    // in a data descriptor after the data
+    private static void putDeflated(ZipOutputStream zip, String name, byte[] contents) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setTime(0);
+        zip.putNextEntry(entry);
+        zip.write(contents);
+        zip.closeEntry();
+    }
+
+    /*
+     * @return The raw local record (header, data and data descriptor) of every entry, by name.
+     */
+    private static Map<String, byte[]> localRecords(File jar) throws IOException {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            for (ZipDirectory.Entry entry : ZipDirectory.read(in).entries) {
+                byte[] record = new byte[(int) entry.localRecordLength];
+                in.seek(entry.localHeaderOffset);
+                in.readFully(record);
+                records.put(entry.name, record);
+            }
+        }
+        return records;
+    }
+
+    private static boolean sameRecords(Map<String, byte[]> before, Map<String, byte[]> after, List<String> replaced) {
+        for (Map.Entry<String, byte[]> entry : before.entrySet()) {
+            if (!replaced.contains(entry.getKey()) && !Arrays.equals(entry.getValue(), after.get(entry.getKey())))
+                return false;
+        }
+        return true;
+    }
+
+    private static long dataOffset(RandomAccessFile in, ZipDirectory.Entry entry) throws IOException {
+        byte[] header = new byte[ZipDirectory.LOCAL_HEADER_SIZE];
+        in.seek(entry.localHeaderOffset);
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        return entry.localHeaderOffset + ZipDirectory.LOCAL_HEADER_SIZE
+                + (buffer.getShort(26) & 0xffff) + (buffer.getShort(28) & 0xffff);
+    }
+
+    private static List<String> names(ZipFile zip) {
+        List<String> names = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            names.add(entries.nextElement().getName());
+        }
+        return names;
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null)
+            return null;
+        try (InputStream in = zip.getInputStream(entry)) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        int count;
+        while ((count = in.read(chunk)) > 0) {
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static String dexName(int index) {
+        return index == 1 ? "classes.dex" : "classes" + index + ".dex";
+    }
+}
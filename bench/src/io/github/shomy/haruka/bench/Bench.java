@@ -0,0 +1,144 @@
+package io.github.shomy.haruka.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import io.github.shomy.haruka.HarukaTrace;
+
+/*
+ * Minimal benchmark runner for the host JVM.
+ * 
+ * Each benchmark is run for a number of time based warmup and measurement iterations,
+ * and reports its throughput along with the bytes allocated per operation (the same
+ * figure JMH reports as gc.alloc.rate.norm with the GC profiler), measured through
+ * com.sun.management.ThreadMXBean.
+ */
+public final class Bench {
+    /*
+     * A single benchmarked operation. The returned value is consumed by the runner,
+     * so the JIT can't optimize the operation away.
+     */
+    public interface Op {
+        Object run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Operations run between two clock reads
+    private static final int BATCH = 256;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Op> ops = new ArrayList<>();
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationMillis = 500;
+    private Pattern filter = Pattern.compile(".*");
+    private File spansFile;
+
+    // Results are stored here so they escape the benchmark loop
+    private static Object sink;
+
+    public void add(String name, Op op) {
+        names.add(name);
+        ops.add(op);
+    }
+
+    /*
+     * Parses the runner options:
+     * -f <regex>  only run the benchmarks whose name matches
+     * -wi <n>     warmup iterations
+     * -i <n>      measurement iterations
+     * -t <ms>     duration of every iteration
+     * -spans <file>  record HarukaTrace spans, and write them to the file as Chrome trace event JSON.
+     *             Tracing costs time, so throughputs are lower than without it.
+     */
+    public void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-f":
+                    filter = Pattern.compile(args[++i]);
+                    break;
+                case "-wi":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    measurementIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-spans":
+                    spansFile = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    public void runAll() throws Exception {
+        HarukaTrace.setEnabled(spansFile != null);
+        System.out.printf("%-52s %14s %10s %12s%n", "Benchmark", "ops/s", "error %", "alloc B/op");
+        for (int i = 0; i < ops.size(); i++) {
+            if (filter.matcher(names.get(i)).find()) {
+                run(names.get(i), ops.get(i));
+            }
+        }
+
+        if (spansFile != null) {
+            HarukaTrace.setEnabled(false);
+            int spans = HarukaTrace.export(spansFile, (int) ProcessHandle.current().pid());
+            System.out.println("[i] " + spans + " spans written to " + spansFile);
+        }
+    }
+
+    private void run(String name, Op op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+
+        double[] throughput = new double[measurementIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long threadId = Thread.currentThread().getId();
+            long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long count = iteration(op);
+            long elapsed = System.nanoTime() - start;
+            totalBytes += THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+            totalOps += count;
+            throughput[i] = count * 1e9 / elapsed;
+        }
+
+        double mean = 0;
+        for (double value : throughput) {
+            mean += value;
+        }
+        mean /= throughput.length;
+
+        double variance = 0;
+        for (double value : throughput) {
+            variance += (value - mean) * (value - mean);
+        }
+        double error = throughput.length > 1 ? Math.sqrt(variance / (throughput.length - 1)) / mean * 100 : 0;
+
+        System.out.printf("%-52s %14.0f %10.2f %12.1f%n", name, mean, error, (double) totalBytes / totalOps);
+    }
+
+    private long iteration(Op op) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        long count = 0;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink = op.run();
+            }
+            count += BATCH;
+        } while (System.nanoTime() < deadline);
+        return count;
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.shomy.haruka.bench;
+
+import java.util.Random;
+
+import android.content.pm.PackageInfo;
+import android.os.Bundle;
+import io.github.shomy.haruka.HarukaPackageWrapper;
+import io.github.shomy.haruka.HarukaSignatureSpoofingCore;
+import io.github.shomy.haruka.PlatformSdkBridge;
+import io.github.shomy.haruka.SdkBridge;
+
+/*
+ * Fake packages used by the benchmarks, shaped like what PMS hands to Haruka.
+ */
+public final class Fixtures {
+    // PackageManager.GET_SIGNATURES and PackageManager.GET_SIGNING_CERTIFICATES
+    public static final long GET_SIGNATURES = 64;
+    public static final long GET_SIGNING_CERTIFICATES = 134217728;
+    // PackageInfo.REQUESTED_PERMISSION_GRANTED
+    public static final int GRANTED = 0x2;
+
+    // A typical set of permissions requested by an app
+    private static final String[] COMMON_PERMISSIONS = {
+            "android.permission.INTERNET",
+            "android.permission.ACCESS_NETWORK_STATE",
+            "android.permission.WAKE_LOCK",
+            "android.permission.RECEIVE_BOOT_COMPLETED",
+            "android.permission.FOREGROUND_SERVICE",
+            "android.permission.POST_NOTIFICATIONS",
+            "android.permission.ACCESS_WIFI_STATE",
+            "android.permission.VIBRATE",
+            "android.permission.READ_EXTERNAL_STORAGE",
+            "android.permission.CAMERA",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.ACCESS_COARSE_LOCATION",
+            "android.permission.GET_ACCOUNTS",
+            "android.permission.USE_CREDENTIALS",
+            "com.google.android.c2dm.permission.RECEIVE",
+    };
+
+    // Hex encoded certificate, roughly the size of the one microG declares
+    public static final String FAKE_SIGNATURE = randomHex(1452, 42);
+
+    private Fixtures() {
+    }
+
+    /*
+     * The SDK 34 bridge, compiled against the stand-ins like the rest of the core.
+     */
+    public static SdkBridge bridge() {
+        return PlatformSdkBridge.INSTANCE;
+    }
+
+    /*
+     * Builds the PackageInfo of a package, as generated with GET_PERMISSIONS.
+     * 
+     * @param packageName The name of the package.
+     * @param spoofing Whether the package requests FAKE_PACKAGE_SIGNATURE.
+     * @param granted Whether FAKE_PACKAGE_SIGNATURE is granted.
+     */
+    public static PackageInfo packageInfo(String packageName, boolean spoofing, boolean granted) {
+        int count = COMMON_PERMISSIONS.length + (spoofing ? 1 : 0);
+        String[] permissions = new String[count];
+        int[] flags = new int[count];
+        for (int i = 0; i < COMMON_PERMISSIONS.length; i++) {
+            // Copy the names, as PMS doesn't hand us the same String instances we compare against
+            permissions[i] = new String(COMMON_PERMISSIONS[i]);
+            flags[i] = (i % 3 == 0) ? 0 : GRANTED;
+        }
+        if (spoofing) {
+            permissions[count - 1] = new String(HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE_PERM);
+            flags[count - 1] = granted ? GRANTED : 0;
+        }
+
+        PackageInfo pi = new PackageInfo();
+        pi.packageName = packageName;
+        pi.requestedPermissions = permissions;
+        pi.requestedPermissionsFlags = flags;
+        return pi;
+    }
+
+    public static Bundle metaData(boolean spoofing) {
+        Bundle metaData = new Bundle();
+        metaData.putString("com.example.some_key", "value");
+        if (spoofing) {
+            metaData.putString(HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE, FAKE_SIGNATURE);
+        }
+        return metaData;
+    }
+
+    public static HarukaPackageWrapper wrap(PackageInfo pi, long flags) {
+        return new HarukaPackageWrapper(pi.packageName, pi.requestedPermissions, pi.requestedPermissionsFlags,
+                flags);
+    }
+
+    private static String randomHex(int bytes, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            builder.append(String.format("%02x", random.nextInt(256)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package io.github.shomy.haruka.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.os.Bundle;
+import io.github.shomy.haruka.HarukaSignatureSpoofingCore;
+import io.github.shomy.haruka.HarukaSpoofCache;
+import io.github.shomy.haruka.SdkBridge;
+import io.github.shomy.haruka.SpoofGrantState;
+import io.github.shomy.haruka.SpoofProfile;
+import io.github.shomy.haruka.SpoofProfileStore;
+import io.github.shomy.haruka.SpoofVisibilityPolicy;
+
+/*
+ * Benchmarks of the Haruka spoofing hot path, run against the host stand-ins in bench/stubs.
+ * 
+ * Usage: scripts/run_bench.sh [-f regex] [-wi n] [-i n] [-t ms]
+ */
+public final class HarukaBenchmarks {
+    private HarukaBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        bench.parseArgs(args);
+        addSpoofingBenchmarks(bench);
+        addVisibilityBenchmarks(bench);
+        addGrantStateBenchmarks(bench);
+        addProfileStoreBenchmarks(bench);
+        bench.runAll();
+    }
+
+    private static void addSpoofingBenchmarks(Bench bench) {
+        final long signatureFlags = Fixtures.GET_SIGNATURES | Fixtures.GET_SIGNING_CERTIFICATES;
+        final SdkBridge bridge = Fixtures.bridge();
+
+        final PackageInfo plain = Fixtures.packageInfo("com.example.plain", false, false);
+        final Bundle plainMetaData = Fixtures.metaData(false);
+        final PackageInfo spoofing = Fixtures.packageInfo("com.google.android.gms", true, true);
+        final Bundle spoofingMetaData = Fixtures.metaData(true);
+        final PackageInfo denied = Fixtures.packageInfo("com.example.denied", true, false);
+
+        final SpoofProfile profile = SpoofProfile.create("com.google.android.gms", 1, 1, true, spoofingMetaData);
+        final HarukaSpoofCache.Entry entry = HarukaSignatureSpoofingCore.createSpoofEntry(profile, 1, bridge,
+                SpoofVisibilityPolicy.UNRESTRICTED);
+        final PackageInfo target = Fixtures.packageInfo("com.google.android.gms", true, true);
+
+        // A new wrapper is built on every operation, as generatePackageInfo does
+        bench.add("SpoofProfile.create.nonSpoofing",
+                () -> SpoofProfile.create("com.example.plain", 1, 1, false, plainMetaData));
+        bench.add("SpoofProfile.create.spoofing",
+                () -> SpoofProfile.create("com.google.android.gms", 1, 1, true, spoofingMetaData));
+        bench.add("isSpoofingPermissionGranted.nonSpoofing",
+                () -> HarukaSignatureSpoofingCore.isSpoofingPermissionGranted(Fixtures.wrap(plain, signatureFlags)));
+        bench.add("isSpoofingPermissionGranted.granted",
+                () -> HarukaSignatureSpoofingCore.isSpoofingPermissionGranted(Fixtures.wrap(spoofing, signatureFlags)));
+        bench.add("isSpoofingPermissionGranted.denied",
+                () -> HarukaSignatureSpoofingCore.isSpoofingPermissionGranted(Fixtures.wrap(denied, signatureFlags)));
+
+        bench.add("createSpoofEntry.spoofing",
+                () -> HarukaSignatureSpoofingCore.createSpoofEntry(profile, 1, bridge,
+                        SpoofVisibilityPolicy.UNRESTRICTED));
+        bench.add("spoofSignature.noSignatureFlags",
+                () -> HarukaSignatureSpoofingCore.spoofSignature(target, 0, entry));
+        bench.add("spoofSignature.getSignatures",
+                () -> HarukaSignatureSpoofingCore.spoofSignature(target, Fixtures.GET_SIGNATURES, entry));
+        bench.add("spoofSignature.getSigningCertificates",
+                () -> HarukaSignatureSpoofingCore.spoofSignature(target, Fixtures.GET_SIGNING_CERTIFICATES, entry));
+        bench.add("spoofSignature.both",
+                () -> HarukaSignatureSpoofingCore.spoofSignature(target, signatureFlags, entry));
+    }
+
+    private static void addVisibilityBenchmarks(Bench bench) {
+        // 4 restricted packages, each visible to 50 of the 200 apps of the device
+        SpoofVisibilityPolicy.Builder builder = new SpoofVisibilityPolicy.Builder();
+        for (int slot = 0; slot < 4; slot++) {
+            int[] allowed = new int[51];
+            allowed[0] = 10_500 + slot;
+            for (int i = 1; i < allowed.length; i++) {
+                allowed[i] = 10_000 + slot * 50 + i - 1;
+            }
+            builder.restrict("com.example.restricted" + slot, allowed);
+        }
+        final SpoofVisibilityPolicy policy = builder.build();
+        final int slot = policy.slotOf("com.example.restricted2");
+
+        bench.add("SpoofVisibilityPolicy.isVisible.unrestricted",
+                () -> policy.isVisible(10_042, SpoofVisibilityPolicy.UNRESTRICTED_SLOT));
+        bench.add("SpoofVisibilityPolicy.isVisible.allowed",
+                () -> policy.isVisible(10_123, slot));
+        bench.add("SpoofVisibilityPolicy.isVisible.denied",
+                () -> policy.isVisible(10_042, slot));
+        bench.add("SpoofVisibilityPolicy.isVisible.unknownCaller",
+                () -> policy.isVisible(10_999, slot));
+    }
+
+    private static void addGrantStateBenchmarks(Bench bench) {
+        final AtomicLongArray grants = SpoofGrantState.INSTANCE.bitmapOf(0);
+        SpoofGrantState.fill(grants, 10_042, true);
+
+        bench.add("SpoofGrantState.get.known",
+                () -> SpoofGrantState.get(grants, 10_042));
+        bench.add("SpoofGrantState.get.unknown",
+                () -> SpoofGrantState.get(grants, 10_043));
+        bench.add("SpoofGrantState.bitmapOf.get",
+                () -> SpoofGrantState.get(SpoofGrantState.INSTANCE.bitmapOf(0), 10_042));
+    }
+
+    private static void addProfileStoreBenchmarks(Bench bench) throws IOException {
+        File file = File.createTempFile("haruka_profiles", ".bin");
+        file.deleteOnExit();
+
+        // A store as it looks after a reboot: everything mapped, nothing pending
+        SpoofProfileStore writer = SpoofProfileStore.open(file);
+        byte[] signature = new Signature(Fixtures.FAKE_SIGNATURE).toByteArray();
+        for (int i = 0; i < 16; i++) {
+            writer.put("com.example.spoofing" + i, 1, 1, signature);
+        }
+        writer.write();
+        final SpoofProfileStore store = SpoofProfileStore.open(file);
+
+        bench.add("SpoofProfileStore.open",
+                () -> SpoofProfileStore.open(file));
+        bench.add("SpoofProfileStore.findSignature.hit",
+                () -> store.findSignature("com.example.spoofing7", 1, 1));
+        // Evicted on the first call, then found removed among the pending changes
+        bench.add("SpoofProfileStore.findSignature.stale",
+                () -> store.findSignature("com.example.spoofing7", 2, 1));
+        bench.add("SpoofProfileStore.findSignature.missing",
+                () -> store.findSignature("com.example.plain", 1, 1));
+    }
+}
@@ -0,0 +1,278 @@
+package io.github.shomy.haruka.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.shomy.haruka.SpoofProfile;
+import io.github.shomy.haruka.SpoofRegistry;
+import io.github.shomy.haruka.SpoofedSigningArtifacts;
+
+/*
+ * Concurrency stress of SpoofRegistry.
+ * 
+ * Reader threads look packages up as fast as they can while writer threads keep publishing
+ * new versions of them, and every read is checked: the entry must belong to the package it was
+ * looked up for, and a reader must never see a package go back to an older version. Then, for
+ * an increasing number of readers, the read throughput is reported along with its scaling
+ * efficiency (the throughput of n readers over n times the throughput of one, with n capped to
+ * the available processors, as in ScalingBench).
+ * 
+ * Exits with 1 if any inconsistent read, lost update or profile replaced by putProfileIfAbsent
+ * is found, or if the scaling efficiency drops below -min-efficiency.
+ * 
+ * Usage: scripts/run_stress.sh [-t ms] [-threads max] [-versions n] [-min-efficiency 0.7]
+ */
+public final class SpoofRegistryStress {
+    private static final int PACKAGES = 10;
+
+    private long durationMillis = 1000;
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+    private int versions = 64;
+    private double minEfficiency = 0.7;
+
+    // Artifacts of every package, version after version: artifacts[package][version]
+    private SpoofedSigningArtifacts[][] artifacts;
+    private final String[] names = new String[PACKAGES];
+
+    private SpoofRegistryStress() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        SpoofRegistryStress stress = new SpoofRegistryStress();
+        stress.parseArgs(args);
+        stress.prepare();
+
+        boolean consistent = stress.checkLostUpdates();
+        consistent &= stress.checkPutIfAbsent();
+        boolean scales = true;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%8s %16s %16s %12s %12s %10s%n",
+                "readers", "reads/s", "reads/s/thread", "efficiency", "writes", "errors");
+        double single = 0;
+        for (int threads = 1; threads <= stress.maxThreads; threads *= 2) {
+            Result result = stress.run(threads);
+            if (threads == 1) {
+                single = result.readsPerSecond;
+            }
+            double efficiency = result.readsPerSecond / (single * Math.min(threads, cores));
+            System.out.printf("%8d %16.0f %16.0f %11.1f%% %12d %10d%n", threads, result.readsPerSecond,
+                    result.readsPerSecond / threads, efficiency * 100, result.writes, result.errors);
+            consistent &= result.errors == 0;
+            if (threads <= cores && efficiency < stress.minEfficiency) {
+                scales = false;
+            }
+        }
+
+        if (!consistent) {
+            System.out.println("FAILED: inconsistent state observed");
+            System.exit(1);
+        }
+        if (!scales) {
+            System.out.printf("FAILED: scaling efficiency below %.0f%%%n", stress.minEfficiency * 100);
+            System.exit(1);
+        }
+        System.out.printf("[i] Scaling efficiency is at least %.0f%% up to %d readers%n", stress.minEfficiency * 100,
+                Math.min(cores, stress.maxThreads));
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t":
+                    durationMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-threads":
+                    maxThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-versions":
+                    versions = Integer.parseInt(args[++i]);
+                    break;
+                case "-min-efficiency":
+                    minEfficiency = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    /*
+     * Builds every version of every package upfront, so writers only publish.
+     * Version code and last update time are the same number, to spot mixed up entries.
+     */
+    private void prepare() {
+        artifacts = new SpoofedSigningArtifacts[PACKAGES][versions];
+        for (int p = 0; p < PACKAGES; p++) {
+            names[p] = "org.example.spoofing" + p;
+            for (int v = 0; v < versions; v++) {
+                SpoofProfile profile = SpoofProfile.create(names[p], v, v, true, Fixtures.metaData(true));
+                artifacts[p][v] = SpoofedSigningArtifacts.obtain(profile, v, Fixtures.bridge());
+            }
+        }
+    }
+
+    /*
+     * Lets a writer per package publish all its versions at the same time, then checks
+     * that every package ended up at its last version.
+     */
+    private boolean checkLostUpdates() throws InterruptedException {
+        final SpoofRegistry registry = new SpoofRegistry();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int p = 0; p < PACKAGES; p++) {
+            final int pkg = p;
+            Thread writer = new Thread(() -> {
+                await(start);
+                for (int v = 0; v < versions; v++) {
+                    registry.put(artifacts[pkg][v]);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        boolean consistent = true;
+        for (int p = 0; p < PACKAGES; p++) {
+            if (registry.get(names[p]) != artifacts[p][versions - 1]) {
+                System.out.println("Lost update of " + names[p]);
+                consistent = false;
+            }
+        }
+        return consistent;
+    }
+
+    /*
+     * Lets a writer per package version register its profile if absent, all at the same time,
+     * then checks that they all got the one profile that ended up registered.
+     */
+    private boolean checkPutIfAbsent() throws InterruptedException {
+        final SpoofRegistry registry = new SpoofRegistry();
+        final CountDownLatch start = new CountDownLatch(1);
+        final SpoofProfile[] registered = new SpoofProfile[versions];
+        List<Thread> writers = new ArrayList<>();
+        for (int v = 0; v < versions; v++) {
+            final int version = v;
+            Thread writer = new Thread(() -> {
+                await(start);
+                SpoofProfile profile = SpoofProfile.create(names[0], version, version, true, Fixtures.metaData(true));
+                registered[version] = registry.putProfileIfAbsent(profile);
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        for (int v = 0; v < versions; v++) {
+            if (registered[v] != registry.getProfile(names[0])) {
+                System.out.println("Profile of " + names[0] + " replaced while absent");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Result {
+        double readsPerSecond;
+        long writes;
+        long errors;
+    }
+
+    private Result run(int readerCount) throws InterruptedException {
+        final SpoofRegistry registry = new SpoofRegistry();
+        for (int p = 0; p < PACKAGES; p++) {
+            registry.put(artifacts[p][0]);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        // A single writer publishes the versions in order, spread over the run
+        Thread writer = new Thread(() -> {
+            await(start);
+            int v = 1;
+            while (running.get() && v < versions) {
+                for (int p = 0; p < PACKAGES; p++) {
+                    registry.put(artifacts[p][v]);
+                    writes.incrementAndGet();
+                }
+                v++;
+                sleep(durationMillis / versions);
+            }
+        });
+
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < readerCount; t++) {
+            final int offset = t;
+            Thread reader = new Thread(() -> {
+                await(start);
+                long[] lastSeen = new long[PACKAGES];
+                long count = 0;
+                long failures = 0;
+                while (running.get()) {
+                    for (int i = 0; i < 1024; i++) {
+                        int p = (i + offset) % PACKAGES;
+                        SpoofedSigningArtifacts a = registry.get(names[p]);
+                        if (a == null || a.getPackageName() != names[p]
+                                || a.getVersionCode() != a.getLastUpdateTime()
+                                || a.getVersionCode() < lastSeen[p]) {
+                            failures++;
+                        } else {
+                            lastSeen[p] = a.getVersionCode();
+                        }
+                    }
+                    count += 1024;
+                }
+                reads.addAndGet(count);
+                errors.addAndGet(failures);
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        writer.start();
+
+        long begin = System.nanoTime();
+        start.countDown();
+        sleep(durationMillis);
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        writer.join();
+
+        Result result = new Result();
+        result.readsPerSecond = reads.get() * 1e9 / elapsed;
+        result.writes = writes.get();
+        result.errors = errors.get();
+        return result;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.pm.PackageInfo;
+import io.github.shomy.haruka.bench.Fixtures;
+import io.github.shomy.haruka.bench.replay.FakePackageManager.FakePackage;
+
+/*
+ * Stand-in for an unpatched ComputerEngine snapshot.
+ * 
+ * generatePackageInfo copies what the flags ask for, the same way the real one does:
+ * permission arrays are copied, while signatures are shared with the package state.
+ */
+class BaselineComputer {
+    // PackageManager.GET_PERMISSIONS
+    static final long GET_PERMISSIONS = 4096;
+
+    protected final FakePackageManager pm;
+
+    BaselineComputer(FakePackageManager pm) {
+        this.pm = pm;
+    }
+
+    final PackageInfo getPackageInfo(String packageName, long flags, int userId) {
+        FakePackage pkg = pm.get(packageName);
+        return pkg != null ? generatePackageInfo(pkg, flags, userId) : null;
+    }
+
+    List<PackageInfo> getInstalledPackages(long flags, int userId) {
+        List<FakePackage> packages = pm.getPackages();
+        List<PackageInfo> result = new ArrayList<>(packages.size());
+        for (int i = 0; i < packages.size(); i++) {
+            PackageInfo pi = generatePackageInfo(packages.get(i), flags, userId);
+            if (pi != null) {
+                result.add(pi);
+            }
+        }
+        return result;
+    }
+
+    PackageInfo generatePackageInfo(FakePackage pkg, long flags, int userId) {
+        PackageInfo pi = new PackageInfo();
+        pi.packageName = pkg.packageName;
+        if ((flags & GET_PERMISSIONS) != 0) {
+            pi.requestedPermissions = pkg.requestedPermissions.clone();
+            pi.requestedPermissionsFlags = pkg.requestedPermissionsFlags.clone();
+        }
+        if ((flags & Fixtures.GET_SIGNATURES) != 0) {
+            pi.signatures = pkg.signatures.clone();
+        }
+        if ((flags & Fixtures.GET_SIGNING_CERTIFICATES) != 0) {
+            pi.signingInfo = pkg.signingInfo;
+        }
+        return pi;
+    }
+}
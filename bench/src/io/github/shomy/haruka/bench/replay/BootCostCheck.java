@@ -0,0 +1,279 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.shomy.haruka.bench.Fixtures;
+import io.github.shomy.haruka.bench.replay.FakePackageManager.FakePackage;
+
+/*
+ * Checks what the first generatePackageInfo costs in a cold JVM, which is what system_server
+ * pays on the boot path (see Haruka).
+ *
+ * Every case runs in a fresh JVM. The query is first run through the unpatched computer, so
+ * the stand-ins of PMS are loaded, then the measured query runs through the patched one.
+ * The classes are loaded by a class loader that records which Haruka classes it defines,
+ * and the JVM counts every other class, so both can be told apart:
+ * - plain: a query without signature flags, before any package is scanned. It must not
+ *          load anything of Haruka but the class holding the first check.
+ * - signatures: the first query asking for signatures, for a package that can't spoof.
+ * - spoof: the first query asking for signatures, for a spoofing package.
+ * - reconcile: the boot scan of packages that don't ask Haruka for anything, as
+ *              PermissionManagerService classifies them once committed. It must only load
+ *              SpoofScan, and SpoofRegistry with its empty Snapshot to unregister them.
+ *
+ * Exits with 1 if a case loads more Haruka classes, or takes longer, than its budget.
+ *
+ * Usage: scripts/run_boot_cost.sh [-max-plain-classes n] [-max-signatures-classes n]
+ *                                 [-max-spoof-classes n] [-max-reconcile-classes n]
+ *                                 [-max-ms ms]
+ */
+public final class BootCostCheck {
+    private static final String PROBE = "-probe";
+    private static final String RESULT = "RESULT ";
+    // Packages of the classes counted as Haruka, the benchmark code itself isn't
+    private static final String HARUKA_PACKAGE = "io.github.shomy.haruka.";
+    private static final String BENCH_PACKAGE = "io.github.shomy.haruka.bench.";
+
+    private int maxPlainClasses = 1;
+    private int maxSignaturesClasses = 4;
+    private int maxSpoofClasses = 12;
+    private int maxReconcileClasses = 3;
+    private long maxMillis = 100;
+
+    private BootCostCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals(PROBE)) {
+            probe(args[1]);
+            return;
+        }
+
+        BootCostCheck check = new BootCostCheck();
+        check.parseArgs(args);
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-max-plain-classes":
+                    maxPlainClasses = Integer.parseInt(args[++i]);
+                    break;
+                case "-max-signatures-classes":
+                    maxSignaturesClasses = Integer.parseInt(args[++i]);
+                    break;
+                case "-max-spoof-classes":
+                    maxSpoofClasses = Integer.parseInt(args[++i]);
+                    break;
+                case "-max-reconcile-classes":
+                    maxReconcileClasses = Integer.parseInt(args[++i]);
+                    break;
+                case "-max-ms":
+                    maxMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    private boolean run() throws IOException, InterruptedException {
+        System.out.printf("%-12s %14s %12s %12s %16s%n", "Case", "Haruka classes", "all classes", "first call",
+                "budget");
+        boolean ok = true;
+        ok &= check(Probe.PLAIN, maxPlainClasses);
+        ok &= check(Probe.SIGNATURES, maxSignaturesClasses);
+        ok &= check(Probe.SPOOF, maxSpoofClasses);
+        ok &= check(Probe.RECONCILE, maxReconcileClasses);
+        System.out.println(ok ? "[i] Startup cost is within budget" : "[!] Startup cost is over budget");
+        return ok;
+    }
+
+    private boolean check(String scenario, int maxClasses) throws IOException, InterruptedException {
+        String[] result = runProbe(scenario);
+        int harukaClasses = Integer.parseInt(result[0]);
+        long allClasses = Long.parseLong(result[1]);
+        long nanos = Long.parseLong(result[2]);
+
+        boolean ok = harukaClasses <= maxClasses && nanos <= maxMillis * 1_000_000L;
+        System.out.printf("%-12s %14d %12d %9.2f ms %6d / %4d ms%s%n", scenario, harukaClasses, allClasses,
+                nanos / 1e6, maxClasses, maxMillis, ok ? "" : "  OVER BUDGET");
+        if (!ok || harukaClasses > 0) {
+            System.out.println("             " + result[3]);
+        }
+        return ok;
+    }
+
+    /*
+     * Runs a case in a new JVM, with the same class path as this one.
+     *
+     * @return The Haruka classes loaded, all the classes loaded, the time taken and the
+     * names of the Haruka classes loaded.
+     */
+    private static String[] runProbe(String scenario) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                BootCostCheck.class.getName(), PROBE, scenario)
+                .redirectErrorStream(true)
+                .start();
+
+        String[] result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    result = line.substring(RESULT.length()).split(" ", 4);
+                } else {
+                    output.append(line).append('\n');
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null)
+            throw new IllegalStateException("Probe " + scenario + " failed:\n" + output);
+        if (result.length < 4)
+            result = Arrays.copyOf(result, 4);
+        if (result[3] == null)
+            result[3] = "";
+        return result;
+    }
+
+    /*
+     * Runs a case in this JVM, which is expected to be a fresh one, and prints the result.
+     */
+    private static void probe(String scenario) throws Exception {
+        RecordingClassLoader loader = new RecordingClassLoader();
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+        Runnable query = (Runnable) loader.loadClass(Probe.class.getName())
+                .getConstructor(String.class)
+                .newInstance(scenario);
+
+        int harukaBefore = loader.harukaClasses().size();
+        long allBefore = classLoading.getTotalLoadedClassCount();
+        long start = System.nanoTime();
+        query.run();
+        long nanos = System.nanoTime() - start;
+        long all = classLoading.getTotalLoadedClassCount() - allBefore;
+
+        List<String> loaded = loader.harukaClasses();
+        List<String> names = loaded.subList(harukaBefore, loaded.size());
+        System.out.println(RESULT + names.size() + " " + all + " " + nanos + " " + String.join(",", names));
+    }
+
+    /*
+     * Loads the classes of the class path itself rather than delegating, so it sees every
+     * class the probe needs, and records the Haruka ones.
+     */
+    private static final class RecordingClassLoader extends URLClassLoader {
+        private final List<String> harukaClasses = new ArrayList<>();
+
+        RecordingClassLoader() throws IOException {
+            super(classPath(), BootCostCheck.class.getClassLoader().getParent());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Class<?> clazz = super.findClass(name);
+            if (name.startsWith(HARUKA_PACKAGE) && !name.startsWith(BENCH_PACKAGE)) {
+                synchronized (harukaClasses) {
+                    harukaClasses.add(name.substring(HARUKA_PACKAGE.length()));
+                }
+            }
+            return clazz;
+        }
+
+        List<String> harukaClasses() {
+            synchronized (harukaClasses) {
+                return new ArrayList<>(harukaClasses);
+            }
+        }
+
+        private static URL[] classPath() throws IOException {
+            String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+            URL[] urls = new URL[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                urls[i] = new File(entries[i]).toURI().toURL();
+            }
+            return urls;
+        }
+    }
+
+    /*
+     * Sets up a case, then runs its query. Loaded by RecordingClassLoader, so everything
+     * it touches is recorded.
+     */
+    public static final class Probe implements Runnable {
+        static final String PLAIN = "plain";
+        static final String SIGNATURES = "signatures";
+        static final String SPOOF = "spoof";
+        static final String RECONCILE = "reconcile";
+
+        private final HarukaComputer computer;
+        private final FakePackage pkg;
+        private final long flags;
+        // Packages to scan instead of querying, for the reconcile case
+        private final FakePackageManager scanned;
+
+        public Probe(String scenario) {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                names.add("com.example.app" + i);
+            }
+            if (scenario.equals(RECONCILE)) {
+                scanned = new FakePackageManager(names, new ArrayList<String>(), 42);
+                computer = null;
+                pkg = null;
+                flags = 0;
+                return;
+            }
+
+            scanned = null;
+            FakePackageManager pm = new FakePackageManager(names, Arrays.asList("com.example.app7"), 42);
+            long signatures = Fixtures.GET_SIGNATURES | Fixtures.GET_SIGNING_CERTIFICATES;
+            switch (scenario) {
+                case PLAIN:
+                    pkg = pm.get("com.example.app7");
+                    flags = 0;
+                    break;
+                case SIGNATURES:
+                    HarukaComputer.scanPackages(pm);
+                    pkg = pm.get("com.example.app3");
+                    flags = signatures;
+                    break;
+                case SPOOF:
+                    HarukaComputer.scanPackages(pm);
+                    pkg = pm.get("com.example.app7");
+                    flags = signatures;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown case: " + scenario);
+            }
+
+            // The unpatched path is loaded beforehand, so only what the patch adds is measured
+            new BaselineComputer(pm).generatePackageInfo(pm.get("com.example.app1"), flags, 0);
+            computer = new HarukaComputer(pm);
+        }
+
+        @Override
+        public void run() {
+            if (scanned != null) {
+                HarukaComputer.scanPackages(scanned);
+                return;
+            }
+            if (computer.generatePackageInfo(pkg, flags, 0) == null)
+                throw new IllegalStateException("No PackageInfo for " + pkg.packageName);
+        }
+    }
+}
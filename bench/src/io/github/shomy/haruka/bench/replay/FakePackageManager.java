@@ -0,0 +1,106 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.pm.Signature;
+import android.content.pm.SigningDetails;
+import android.content.pm.SigningInfo;
+import android.os.Bundle;
+import io.github.shomy.haruka.HarukaSignatureSpoofingCore;
+import io.github.shomy.haruka.bench.Fixtures;
+
+/*
+ * In-memory stand-in for the package state of PackageManagerService.
+ * 
+ * It only holds what generatePackageInfo reads: the app id, the requested permissions with their
+ * flags, the metadata, the version and the real signature of every package.
+ */
+final class FakePackageManager {
+    static final class FakePackage {
+        final String packageName;
+        final int appId;
+        final String[] requestedPermissions;
+        final int[] requestedPermissionsFlags;
+        final Bundle metaData;
+        final long versionCode;
+        final long lastUpdateTime;
+        final Signature[] signatures;
+        final SigningInfo signingInfo;
+
+        FakePackage(String packageName, int appId, boolean spoofing, Random random) {
+            this.packageName = packageName;
+            this.appId = appId;
+
+            // Between 4 and 19 permissions, like most apps
+            int count = 4 + random.nextInt(16) + (spoofing ? 1 : 0);
+            requestedPermissions = new String[count];
+            requestedPermissionsFlags = new int[count];
+            for (int i = 0; i < count; i++) {
+                requestedPermissions[i] = "android.permission.REPLAY_" + random.nextInt(64);
+                requestedPermissionsFlags[i] = random.nextBoolean() ? Fixtures.GRANTED : 0;
+            }
+
+            metaData = new Bundle();
+            metaData.putString("com.example.some_key", "value");
+            if (spoofing) {
+                requestedPermissions[count - 1] = HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE_PERM;
+                requestedPermissionsFlags[count - 1] = Fixtures.GRANTED;
+                metaData.putString(HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE, Fixtures.FAKE_SIGNATURE);
+            }
+
+            versionCode = 1 + random.nextInt(1000);
+            lastUpdateTime = 1_700_000_000_000L + random.nextInt(1_000_000);
+
+            byte[] certificate = new byte[512];
+            random.nextBytes(certificate);
+            signatures = new Signature[] { new Signature(certificate) };
+            signingInfo = new SigningInfo(new SigningDetails(signatures, 3));
+        }
+    }
+
+    // Process.FIRST_APPLICATION_UID, app ids are given out in order from here
+    static final int FIRST_APPLICATION_UID = 10000;
+
+    private final Map<String, FakePackage> packages = new HashMap<>();
+    private final List<FakePackage> packageList = new ArrayList<>();
+    private final List<String> spoofingPackages = new ArrayList<>();
+
+    /*
+     * @param names The packages installed on the device, as they're iterated by list queries.
+     * @param spoofing The packages that spoof their signature, as a subset of names.
+     * @param seed Seed of the generated package contents.
+     */
+    FakePackageManager(List<String> names, List<String> spoofing, long seed) {
+        Random random = new Random(seed);
+        for (String name : names) {
+            boolean isSpoofing = spoofing.contains(name);
+            FakePackage pkg = new FakePackage(name, FIRST_APPLICATION_UID + packageList.size(), isSpoofing, random);
+            packages.put(name, pkg);
+            packageList.add(pkg);
+            if (isSpoofing) {
+                spoofingPackages.add(name);
+            }
+        }
+    }
+
+    FakePackage get(String packageName) {
+        return packages.get(packageName);
+    }
+
+    List<FakePackage> getPackages() {
+        return Collections.unmodifiableList(packageList);
+    }
+
+    List<String> getSpoofingPackages() {
+        return Collections.unmodifiableList(spoofingPackages);
+    }
+
+    int size() {
+        return packageList.size();
+    }
+}
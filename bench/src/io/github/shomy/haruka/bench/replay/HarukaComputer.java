@@ -0,0 +1,112 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.pm.PackageInfo;
+import android.os.Binder;
+import io.github.shomy.haruka.HarukaMetrics;
+import io.github.shomy.haruka.HarukaSignatureSpoofingCore;
+import io.github.shomy.haruka.HarukaSpoofCache;
+import io.github.shomy.haruka.HarukaTrace;
+import io.github.shomy.haruka.SpoofGrantState;
+import io.github.shomy.haruka.SpoofProfile;
+import io.github.shomy.haruka.SpoofQuery;
+import io.github.shomy.haruka.SpoofRegistry;
+import io.github.shomy.haruka.SpoofScan;
+import io.github.shomy.haruka.bench.Fixtures;
+import io.github.shomy.haruka.bench.replay.FakePackageManager.FakePackage;
+
+/*
+ * Stand-in for a patched ComputerEngine snapshot.
+ * 
+ * The patch itself can't run on the host (it wraps PMS methods through dexpatcher). What it
+ * decides for a query is in SpoofQuery, which this calls just like
+ * src/sdk34/com/android/server/pm/ComputerEngine.java does, so only the lookups of the
+ * snapshot state are mirrored here. Keep them in sync when changing the patch.
+ */
+final class HarukaComputer extends BaselineComputer {
+    // Every snapshot gets its own cache, as in ComputerEngine
+    private final HarukaSpoofCache cache = new HarukaSpoofCache();
+
+    HarukaComputer(FakePackageManager pm) {
+        super(pm);
+    }
+
+    /*
+     * Registers the profiles of the spoofing packages, as PermissionManagerService does
+     * when PMS commits them at boot.
+     */
+    static void scanPackages(FakePackageManager pm) {
+        for (FakePackage pkg : pm.getPackages()) {
+            SpoofRegistry.INSTANCE.putAppId(pkg.packageName, pkg.appId);
+            int flags = 0;
+            for (String permission : pkg.requestedPermissions) {
+                flags |= SpoofScan.classify(permission);
+            }
+
+            if ((flags & SpoofScan.FAKE_PACKAGE_SIGNATURE) != 0) {
+                SpoofScan.register(pkg.packageName, pkg.versionCode, pkg.lastUpdateTime, pkg.metaData);
+            } else {
+                SpoofScan.unregister(pkg.packageName);
+            }
+        }
+    }
+
+    @Override
+    PackageInfo generatePackageInfo(FakePackage pkg, long flags, int userId) {
+        if (!HarukaSignatureSpoofingCore.requestsSignatures(flags))
+            return super.generatePackageInfo(pkg, flags, userId);
+
+        HarukaMetrics.GENERATE_PACKAGE_INFO_SIGNATURE_CALLS.increment();
+
+        long entrySpan = HarukaTrace.begin();
+        HarukaSpoofCache.Entry entry = getHarukaSpoofEntry(pkg);
+        HarukaTrace.end(HarukaTrace.GET_SPOOF_ENTRY, entrySpan);
+        if (!entry.isSpoofing())
+            return super.generatePackageInfo(pkg, flags, userId);
+        if (!SpoofQuery.appliesTo(entry, Binder.getCallingUid()))
+            return super.generatePackageInfo(pkg, flags, userId);
+
+        AtomicLongArray grants = SpoofGrantState.INSTANCE.bitmapOf(userId);
+        int grant = SpoofQuery.grantStateOf(grants, pkg.appId);
+        if (grant == SpoofGrantState.DENIED)
+            return super.generatePackageInfo(pkg, flags, userId);
+
+        long span = HarukaTrace.begin();
+        long start = System.nanoTime();
+        long originalSpan = HarukaTrace.begin();
+        PackageInfo pi = super.generatePackageInfo(pkg, SpoofQuery.generateFlags(grant, flags), userId);
+        HarukaTrace.end(HarukaTrace.GENERATE_PACKAGE_INFO_ORIGINAL, originalSpan);
+        return SpoofQuery.finish(pi, flags, grant, entry, grants, pkg.appId, start, span);
+    }
+
+    private HarukaSpoofCache.Entry getHarukaSpoofEntry(FakePackage pkg) {
+        SpoofRegistry.Snapshot registry = SpoofRegistry.INSTANCE.snapshot();
+        if (!registry.mayBeSpoofing(pkg.packageName))
+            return HarukaSpoofCache.NOT_SPOOFING;
+
+        HarukaSpoofCache.Entry entry = cache.get(pkg.packageName);
+        if (entry != null) {
+            return entry;
+        }
+
+        HarukaMetrics.SPOOF_CACHE_MISSES.increment();
+        entry = HarukaSpoofCache.NOT_SPOOFING;
+        if (declaresHarukaSpoofingPermission(pkg)) {
+            SpoofProfile profile = SpoofProfile.lookup(pkg.packageName, pkg.versionCode, pkg.lastUpdateTime,
+                    pkg.metaData);
+            entry = HarukaSignatureSpoofingCore.createSpoofEntry(profile, pkg.lastUpdateTime, Fixtures.bridge(),
+                    registry.getVisibilityPolicy());
+        }
+
+        return cache.put(pkg.packageName, entry);
+    }
+
+    private static boolean declaresHarukaSpoofingPermission(FakePackage pkg) {
+        for (int i = 0; i < pkg.requestedPermissions.length; i++) {
+            if (HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE_PERM.equals(pkg.requestedPermissions[i]))
+                return true;
+        }
+        return false;
+    }
+}
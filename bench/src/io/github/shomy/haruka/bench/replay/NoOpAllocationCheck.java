@@ -0,0 +1,123 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.os.Binder;
+import io.github.shomy.haruka.HarukaSignatureSpoofingCore;
+import io.github.shomy.haruka.bench.Fixtures;
+import io.github.shomy.haruka.bench.replay.FakePackageManager.FakePackage;
+
+/*
+ * Checks that queries Haruka has nothing to do with (no signature flags, a package that can't
+ * spoof, or a caller the fake signature is hidden from) don't allocate anything on top of what
+ * the unpatched generatePackageInfo does.
+ * 
+ * Every case is a single query replayed many times on a single thread, against the
+ * unpatched computer and against the patched one, counting the bytes allocated by the
+ * thread through com.sun.management.ThreadMXBean. Both build the very same PackageInfo, so
+ * the patched computer must allocate exactly as much as the unpatched one.
+ * 
+ * Exits with 1 if any case allocates.
+ * 
+ * Usage: scripts/run_alloc_check.sh [-n calls]
+ */
+public final class NoOpAllocationCheck {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Calls before measuring, so the JIT settles and the lazily built state is there
+    private static final int WARMUP_CALLS = 50_000;
+    // Measurements of every case, keeping the lowest. A path that allocates does so on every
+    // call, while the JIT recompiling something only shows up in some rounds.
+    private static final int ROUNDS = 5;
+
+    // Results are stored here so the JIT can't optimize the queries away
+    private static Object sink;
+
+    private int calls = 200_000;
+
+    private NoOpAllocationCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        NoOpAllocationCheck check = new NoOpAllocationCheck();
+        check.parseArgs(args);
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n":
+                    calls = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    private boolean run() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add("com.example.app" + i);
+        }
+        FakePackageManager pm = new FakePackageManager(names,
+                Arrays.asList("com.example.app7", "com.example.app8"), 42);
+        // app8 only shows its fake signature to app1
+        pm.get("com.example.app8").metaData.putString(
+                HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE_VISIBLE_TO, "com.example.app1");
+        HarukaComputer.scanPackages(pm);
+
+        BaselineComputer baseline = new BaselineComputer(pm);
+        HarukaComputer haruka = new HarukaComputer(pm);
+        FakePackage spoofing = pm.get("com.example.app7");
+        FakePackage restricted = pm.get("com.example.app8");
+        FakePackage other = pm.get("com.example.app3");
+        long signatures = Fixtures.GET_SIGNATURES | Fixtures.GET_SIGNING_CERTIFICATES;
+
+        System.out.printf("%-52s %14s %14s %10s%n", "Case", "baseline B", "haruka B", "extra B");
+        boolean ok = true;
+        ok &= check("no signature flags, non spoofing package", baseline, haruka, other, 0);
+        ok &= check("no signature flags, spoofing package", baseline, haruka, spoofing, 0);
+        ok &= check("GET_PERMISSIONS, spoofing package", baseline, haruka, spoofing,
+                BaselineComputer.GET_PERMISSIONS);
+        ok &= check("signature flags, non spoofing package", baseline, haruka, other, signatures);
+        Binder.setCallingUid(other.appId);
+        ok &= check("signature flags, spoofing package hidden from caller", baseline, haruka, restricted,
+                signatures);
+
+        System.out.println(ok ? "[i] No-op path is allocation free" : "[!] No-op path allocates");
+        return ok;
+    }
+
+    private boolean check(String name, BaselineComputer baseline, HarukaComputer haruka, FakePackage pkg,
+            long flags) {
+        measure(baseline, pkg, flags, WARMUP_CALLS);
+        measure(haruka, pkg, flags, WARMUP_CALLS);
+        long baselineBytes = Long.MAX_VALUE;
+        long harukaBytes = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            baselineBytes = Math.min(baselineBytes, measure(baseline, pkg, flags, calls));
+            harukaBytes = Math.min(harukaBytes, measure(haruka, pkg, flags, calls));
+        }
+
+        long extra = harukaBytes - baselineBytes;
+        System.out.printf("%-52s %14d %14d %10d%n", name, baselineBytes, harukaBytes, Math.max(extra, 0));
+        return extra <= 0;
+    }
+
+    /*
+     * @return The bytes allocated by the current thread while running the query.
+     */
+    private static long measure(BaselineComputer computer, FakePackage pkg, long flags, int count) {
+        long thread = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < count; i++) {
+            sink = computer.generatePackageInfo(pkg, flags, 0);
+        }
+        return THREADS.getThreadAllocatedBytes(thread) - before;
+    }
+}
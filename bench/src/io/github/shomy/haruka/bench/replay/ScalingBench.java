@@ -0,0 +1,246 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import io.github.shomy.haruka.bench.Fixtures;
+import io.github.shomy.haruka.bench.replay.FakePackageManager.FakePackage;
+
+/*
+ * Multi-core scaling of generatePackageInfo, unpatched and patched.
+ *
+ * For every thread count, that many threads call generatePackageInfo as fast as they can for
+ * a fixed time, on a mix of packages and flags, and the throughput is compared with the single
+ * thread one. Three setups are measured:
+ * - baseline: the unpatched stand-in, showing how well the host itself scales.
+ * - shared:   the patched stand-in, all threads on the same snapshot like binder threads on
+ *             a device, sharing its caches and every Haruka global (metrics, registry, ...).
+ * - private:  the patched stand-in, every thread on its own snapshot. Only the globals are
+ *             shared, so the gap with shared is the contention on the snapshot caches.
+ *
+ * Scaling efficiency is throughput(n) / (throughput(1) * n), with n capped to the available
+ * cores (more threads than cores can't go faster). Contention is how much of the baseline
+ * efficiency the patch loses: shared or false shared lines (counters, caches) show up there
+ * as efficiency going down with the thread count, while the baseline's doesn't.
+ *
+ * Exits with 1 if the efficiency of the shared setup drops below -min-efficiency at any
+ * thread count up to the number of cores.
+ *
+ * Usage: scripts/run_scaling.sh [-threads 1,2,4,8,16] [-t ms] [-wt ms] [-min-efficiency 0.7]
+ *                               [-packages n] [-spoofing n] [-signatures percent]
+ */
+public final class ScalingBench {
+    // Calls of a thread, cycled through
+    private static final int CALLS = 4096;
+    // Slots of the per thread counters, spaced so no two threads share a cache line
+    private static final int STRIDE = 16;
+
+    private int[] threadCounts = { 1, 2, 4, 8, 16 };
+    private long durationMillis = 1000;
+    private long warmupMillis = 1000;
+    private double minEfficiency = 0.7;
+    private int packageCount = 500;
+    private int spoofingCount = 10;
+    private int signaturePercent = 30;
+
+    private FakePackageManager pm;
+
+    private ScalingBench() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ScalingBench bench = new ScalingBench();
+        bench.parseArgs(args);
+        System.exit(bench.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads":
+                    String[] counts = args[++i].split(",");
+                    threadCounts = new int[counts.length];
+                    for (int c = 0; c < counts.length; c++) {
+                        threadCounts[c] = Integer.parseInt(counts[c].trim());
+                    }
+                    break;
+                case "-t":
+                    durationMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-wt":
+                    warmupMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-min-efficiency":
+                    minEfficiency = Double.parseDouble(args[++i]);
+                    break;
+                case "-packages":
+                    packageCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-spoofing":
+                    spoofingCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-signatures":
+                    signaturePercent = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    private boolean run() throws InterruptedException {
+        List<String> names = new ArrayList<>();
+        List<String> spoofing = new ArrayList<>();
+        for (int i = 0; i < packageCount; i++) {
+            names.add("com.example.app" + i);
+            if (i < spoofingCount) {
+                spoofing.add("com.example.app" + i);
+            }
+        }
+        pm = new FakePackageManager(names, spoofing, 1);
+        HarukaComputer.scanPackages(pm);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d packages (%d spoofing), %d%% signature queries, %d cores%n%n",
+                packageCount, spoofingCount, signaturePercent, cores);
+
+        final HarukaComputer shared = new HarukaComputer(pm);
+        // Compile every path before the first measurement, or the first setup pays for it
+        measure(() -> new BaselineComputer(pm), 1, warmupMillis);
+        measure(() -> shared, 1, warmupMillis);
+        measure(() -> new HarukaComputer(pm), 1, warmupMillis);
+
+        double[] baseline = sweep(() -> new BaselineComputer(pm), false);
+        double[] sharedResult = sweep(() -> shared, true);
+        double[] privateResult = sweep(() -> new HarukaComputer(pm), false);
+
+        System.out.printf("%8s %14s %8s %14s %8s %14s %8s %11s %11s%n", "threads", "baseline/s", "eff",
+                "shared/s", "eff", "private/s", "eff", "contention", "vs private");
+        boolean ok = true;
+        for (int i = 0; i < threadCounts.length; i++) {
+            int n = threadCounts[i];
+            double baselineEfficiency = efficiency(baseline, i, cores);
+            double sharedEfficiency = efficiency(sharedResult, i, cores);
+            double privateEfficiency = efficiency(privateResult, i, cores);
+            System.out.printf("%8d %14.0f %7.1f%% %14.0f %7.1f%% %14.0f %7.1f%% %10.1f%% %10.1f%%%n", n,
+                    baseline[i], baselineEfficiency * 100, sharedResult[i], sharedEfficiency * 100,
+                    privateResult[i], privateEfficiency * 100,
+                    (1 - sharedEfficiency / baselineEfficiency) * 100,
+                    (1 - sharedResult[i] / privateResult[i]) * 100);
+
+            if (n <= cores && sharedEfficiency < minEfficiency) {
+                ok = false;
+            }
+        }
+
+        System.out.println();
+        if (ok) {
+            System.out.printf("[i] Scaling efficiency is at least %.0f%% up to %d threads%n", minEfficiency * 100,
+                    Math.min(cores, threadCounts[threadCounts.length - 1]));
+        } else {
+            System.out.printf("FAILED: scaling efficiency below %.0f%%%n", minEfficiency * 100);
+        }
+        return ok;
+    }
+
+    // Throughput relative to the single thread one, over the threads that can actually run at once
+    private double efficiency(double[] throughputs, int index, int cores) {
+        double single = throughputs[0] * threadCounts[0] / Math.min(threadCounts[0], cores);
+        return throughputs[index] / (single * Math.min(threadCounts[index], cores));
+    }
+
+    /*
+     * @param computers Gives every thread its computer.
+     * @param warmOnce Whether computers are shared, so the warmup only needs to run once.
+     * @return The throughput, in calls per second, for every thread count.
+     */
+    private double[] sweep(Supplier<BaselineComputer> computers, boolean warmOnce) throws InterruptedException {
+        double[] throughputs = new double[threadCounts.length];
+        for (int i = 0; i < threadCounts.length; i++) {
+            if (i == 0 || !warmOnce) {
+                measure(computers, threadCounts[i], warmupMillis);
+            }
+            throughputs[i] = measure(computers, threadCounts[i], durationMillis);
+        }
+        return throughputs;
+    }
+
+    /*
+     * Runs the threads for the given time.
+     *
+     * @return The throughput of all threads together, in calls per second.
+     */
+    private double measure(Supplier<BaselineComputer> computers, int threadCount, long millis)
+            throws InterruptedException {
+        final AtomicLongArray counts = new AtomicLongArray(threadCount * STRIDE);
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int slot = t * STRIDE;
+            final BaselineComputer computer = computers.get();
+            final FakePackage[] packages = new FakePackage[CALLS];
+            final long[] flags = new long[CALLS];
+            prepareCalls(new Random(t), packages, flags);
+
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long end = deadline[0];
+                long count = 0;
+                do {
+                    for (int i = 0; i < CALLS; i++) {
+                        computer.generatePackageInfo(packages[i], flags[i], 0);
+                    }
+                    count += CALLS;
+                } while (System.nanoTime() < end);
+                counts.set(slot, count);
+            }, "binder:" + t);
+            thread.start();
+            threads.add(thread);
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1_000_000L;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long total = 0;
+        for (int t = 0; t < threadCount; t++) {
+            total += counts.get(t * STRIDE);
+        }
+        return total * 1e9 / elapsed;
+    }
+
+    /*
+     * Picks the calls of a thread: half of the signature queries go to the spoofing packages,
+     * as apps checking a spoofed signature keep asking for the same few packages.
+     */
+    private void prepareCalls(Random random, FakePackage[] packages, long[] flags) {
+        List<FakePackage> all = pm.getPackages();
+        List<String> spoofing = pm.getSpoofingPackages();
+        long signatures = Fixtures.GET_SIGNATURES | Fixtures.GET_SIGNING_CERTIFICATES;
+        for (int i = 0; i < packages.length; i++) {
+            boolean signatureQuery = random.nextInt(100) < signaturePercent;
+            if (signatureQuery && !spoofing.isEmpty() && random.nextBoolean()) {
+                packages[i] = pm.get(spoofing.get(random.nextInt(spoofing.size())));
+            } else {
+                packages[i] = all.get(random.nextInt(all.size()));
+            }
+            flags[i] = signatureQuery ? signatures : random.nextBoolean() ? BaselineComputer.GET_PERMISSIONS : 0;
+        }
+    }
+}
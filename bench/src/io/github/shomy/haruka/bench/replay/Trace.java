@@ -0,0 +1,239 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import io.github.shomy.haruka.bench.Fixtures;
+
+/*
+ * A sequence of PackageManager calls, grouped by the thread that made them.
+ * 
+ * Traces are plain text files, one entry per line, blank lines and # comments being ignored:
+ * 
+ *   package <name> [spoofing]                          an installed package
+ *   <thread> getPackageInfo <name> <flags> <userId>    a single package query
+ *   <thread> getInstalledPackages - <flags> <userId>   a list query
+ *   <thread> snapshot - 0 0                            a package change, creating a new snapshot
+ * 
+ * Flags can be written in decimal or 0x prefixed hex. The package lines are optional: when a
+ * trace has none (for example when captured from a device), the installed packages are the
+ * ones it queries, and the spoofing ones are chosen when replaying it.
+ */
+final class Trace {
+    static final int GET_PACKAGE_INFO = 0;
+    static final int GET_INSTALLED_PACKAGES = 1;
+    static final int SNAPSHOT = 2;
+
+    private static final String[] OPS = { "getPackageInfo", "getInstalledPackages", "snapshot" };
+
+    static final class Event {
+        final int op;
+        final String packageName;
+        final long flags;
+        final int userId;
+
+        Event(int op, String packageName, long flags, int userId) {
+            this.op = op;
+            this.packageName = packageName;
+            this.flags = flags;
+            this.userId = userId;
+        }
+    }
+
+    // Installed packages, in list query order
+    final List<String> packages = new ArrayList<>();
+    final List<String> spoofingPackages = new ArrayList<>();
+    // Events of every thread, in the order the thread made them
+    final Map<String, List<Event>> threads = new LinkedHashMap<>();
+
+    static String opName(int op) {
+        return OPS[op];
+    }
+
+    int eventCount() {
+        int count = 0;
+        for (List<Event> events : threads.values()) {
+            count += events.size();
+        }
+        return count;
+    }
+
+    /*
+     * Every package name queried by the trace, in order of first appearance.
+     */
+    Set<String> queriedPackages() {
+        Set<String> names = new LinkedHashSet<>();
+        for (List<Event> events : threads.values()) {
+            for (Event event : events) {
+                if (event.packageName != null) {
+                    names.add(event.packageName);
+                }
+            }
+        }
+        return names;
+    }
+
+    static Trace load(File file) throws IOException {
+        Trace trace = new Trace();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] parts = line.split("\\s+");
+                if (parts[0].equals("package")) {
+                    trace.packages.add(parts[1]);
+                    if (parts.length > 2 && parts[2].equals("spoofing")) {
+                        trace.spoofingPackages.add(parts[1]);
+                    }
+                    continue;
+                }
+
+                if (parts.length != 5)
+                    throw new IOException(file + ":" + lineNumber + ": expected 5 fields, got " + parts.length);
+
+                int op = -1;
+                for (int i = 0; i < OPS.length; i++) {
+                    if (OPS[i].equals(parts[1])) {
+                        op = i;
+                    }
+                }
+                if (op < 0)
+                    throw new IOException(file + ":" + lineNumber + ": unknown call " + parts[1]);
+
+                String packageName = parts[2].equals("-") ? null : parts[2];
+                if (op == GET_PACKAGE_INFO && packageName == null)
+                    throw new IOException(file + ":" + lineNumber + ": getPackageInfo without a package");
+
+                trace.add(parts[0], new Event(op, packageName, Long.decode(parts[3]), Integer.parseInt(parts[4])));
+            }
+        }
+        return trace;
+    }
+
+    void save(File file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+                PrintWriter out = new PrintWriter(writer)) {
+            out.println("# Haruka replay trace");
+            for (String name : packages) {
+                out.println(spoofingPackages.contains(name) ? "package " + name + " spoofing" : "package " + name);
+            }
+            for (Map.Entry<String, List<Event>> thread : threads.entrySet()) {
+                for (Event event : thread.getValue()) {
+                    out.printf("%s %s %s 0x%x %d%n", thread.getKey(), OPS[event.op],
+                            event.packageName != null ? event.packageName : "-", event.flags, event.userId);
+                }
+            }
+        }
+    }
+
+    /*
+     * Generates a trace shaped like the traffic of a running device: mostly single package
+     * queries from binder threads, a few list queries and rare package changes. The spoofing
+     * packages (think microG) get a good share of the queries, as every app using them
+     * checks their signature.
+     * 
+     * @param packageCount The number of installed packages.
+     * @param spoofingCount How many of them spoof their signature.
+     * @param threadCount The number of calling threads.
+     * @param eventsPerThread The number of calls of every thread.
+     * @param seed Seed of the generated calls.
+     */
+    static Trace synthetic(int packageCount, int spoofingCount, int threadCount, int eventsPerThread, long seed) {
+        Trace trace = new Trace();
+        for (int i = 0; i < packageCount; i++) {
+            String name = i < spoofingCount ? "org.example.spoofing" + i : "com.example.app" + i;
+            trace.packages.add(name);
+            if (i < spoofingCount) {
+                trace.spoofingPackages.add(name);
+            }
+        }
+
+        long[] flagChoices = {
+                0,
+                128, // GET_META_DATA
+                BaselineComputer.GET_PERMISSIONS,
+                Fixtures.GET_SIGNATURES,
+                Fixtures.GET_SIGNING_CERTIFICATES,
+                Fixtures.GET_SIGNATURES | Fixtures.GET_SIGNING_CERTIFICATES,
+        };
+
+        Random random = new Random(seed);
+        for (int t = 0; t < threadCount; t++) {
+            String thread = "binder:" + (t + 1);
+            for (int i = 0; i < eventsPerThread; i++) {
+                int roll = random.nextInt(10_000);
+                long flags = flagChoices[random.nextInt(flagChoices.length)];
+                if (roll < 2) {
+                    trace.add(thread, new Event(SNAPSHOT, null, 0, 0));
+                } else if (roll < 50) {
+                    trace.add(thread, new Event(GET_INSTALLED_PACKAGES, null, flags, 0));
+                } else {
+                    boolean spoofing = spoofingCount > 0 && random.nextInt(100) < 20;
+                    String name = spoofing
+                            ? trace.spoofingPackages.get(random.nextInt(spoofingCount))
+                            : trace.packages.get(random.nextInt(packageCount));
+                    trace.add(thread, new Event(GET_PACKAGE_INFO, name, flags, 0));
+                }
+            }
+        }
+        return trace;
+    }
+
+    /*
+     * Fills in the installed packages of a trace without package lines.
+     * 
+     * @param packageCount The minimum number of installed packages, padded with unqueried ones.
+     * @param spoofing The packages that spoof, or empty to pick the first spoofingCount queried ones.
+     * @param spoofingCount How many packages spoof when none are given.
+     */
+    void completePackages(int packageCount, List<String> spoofing, int spoofingCount) {
+        if (packages.isEmpty()) {
+            packages.addAll(queriedPackages());
+            for (int i = 0; packages.size() < packageCount; i++) {
+                packages.add("com.example.unqueried" + i);
+            }
+        }
+
+        if (!spoofing.isEmpty()) {
+            spoofingPackages.clear();
+            spoofingPackages.addAll(spoofing);
+        } else if (spoofingPackages.isEmpty()) {
+            List<String> sorted = new ArrayList<>(queriedPackages());
+            Collections.sort(sorted);
+            spoofingPackages.addAll(sorted.subList(0, Math.min(spoofingCount, sorted.size())));
+        }
+
+        for (String name : spoofingPackages) {
+            if (!packages.contains(name)) {
+                packages.add(name);
+            }
+        }
+    }
+
+    private void add(String thread, Event event) {
+        List<Event> events = threads.get(thread);
+        if (events == null) {
+            events = new ArrayList<>();
+            threads.put(thread, events);
+        }
+        events.add(event);
+    }
+}
@@ -0,0 +1,375 @@
+package io.github.shomy.haruka.bench.replay;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
+import android.content.pm.PackageInfo;
+import io.github.shomy.haruka.HarukaTrace;
+import io.github.shomy.haruka.bench.replay.Trace.Event;
+
+/*
+ * Replays a trace of PackageManager calls against an unpatched and a Haruka patched
+ * stand-in of ComputerEngine, and reports how much the patch costs.
+ * 
+ * Every thread of the trace gets its own replaying thread, which makes its calls in order
+ * and as fast as it can. For every mode the trace is replayed a few times to warm up, then
+ * a few times to measure throughput and latency, then once more to measure the bytes allocated
+ * per call (kept apart, so reading the allocation counters doesn't skew the latencies).
+ * 
+ * Usage: scripts/run_replay.sh [options]
+ *   -trace <file>      replay this trace instead of a synthetic one (see Trace for the format)
+ *   -save <file>       save the replayed trace, to rerun it later with -trace
+ *   -packages <n>      installed packages of synthetic traces, or minimum for loaded ones (500)
+ *   -spoofing <n>      how many of them spoof (10)
+ *   -spoof <a,b,...>   the spoofing packages of a loaded trace without package lines
+ *   -threads <n>       calling threads of synthetic traces (4)
+ *   -events <n>        calls per thread of synthetic traces (20000)
+ *   -seed <n>          seed of the synthetic trace and package contents (1)
+ *   -wi <n>            warmup replays (3)
+ *   -i <n>             measured replays (5)
+ *   -spans <file>      replay once more with HarukaTrace on, and write the spans to the file as
+ *                      Chrome trace event JSON (the same format devices write, see HarukaTrace)
+ */
+public final class TraceReplay {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private File traceFile;
+    private File saveFile;
+    private File spansFile;
+    private int packageCount = 500;
+    private int spoofingCount = 10;
+    private List<String> spoof = Collections.emptyList();
+    private int threadCount = 4;
+    private int eventsPerThread = 20_000;
+    private long seed = 1;
+    private int warmupReplays = 3;
+    private int measuredReplays = 5;
+
+    private TraceReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        TraceReplay replay = new TraceReplay();
+        replay.parseArgs(args);
+        replay.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-trace":
+                    traceFile = new File(args[++i]);
+                    break;
+                case "-save":
+                    saveFile = new File(args[++i]);
+                    break;
+                case "-packages":
+                    packageCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-spoofing":
+                    spoofingCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-spoof":
+                    spoof = Arrays.asList(args[++i].split(","));
+                    break;
+                case "-threads":
+                    threadCount = Integer.parseInt(args[++i]);
+                    break;
+                case "-events":
+                    eventsPerThread = Integer.parseInt(args[++i]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-wi":
+                    warmupReplays = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    measuredReplays = Integer.parseInt(args[++i]);
+                    break;
+                case "-spans":
+                    spansFile = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Trace trace;
+        if (traceFile != null) {
+            trace = Trace.load(traceFile);
+            trace.completePackages(packageCount, spoof, spoofingCount);
+        } else {
+            trace = Trace.synthetic(packageCount, spoofingCount, threadCount, eventsPerThread, seed);
+        }
+
+        if (saveFile != null) {
+            trace.save(saveFile);
+            System.out.println("[i] Trace saved to " + saveFile);
+        }
+
+        FakePackageManager pm = new FakePackageManager(trace.packages, trace.spoofingPackages, seed);
+        System.out.printf("Trace: %d threads, %d calls, %d packages (%d spoofing)%n%n",
+                trace.threads.size(), trace.eventCount(), pm.size(), pm.getSpoofingPackages().size());
+
+        Result baseline = replay("baseline", trace, pm, BaselineComputer::new);
+        HarukaComputer.scanPackages(pm);
+        Result haruka = replay("haruka", trace, pm, HarukaComputer::new);
+
+        System.out.printf("%-10s %-22s %10s %12s %10s %10s %10s %14s%n",
+                "Mode", "Call", "calls", "ops/s", "p50 ns", "p99 ns", "p999 ns", "alloc B/call");
+        baseline.print();
+        haruka.print();
+
+        System.out.println();
+        System.out.println("Overhead of haruka over baseline:");
+        System.out.printf("  throughput %+.1f%%%n", (haruka.throughput / baseline.throughput - 1) * 100);
+        for (int op = 0; op < Result.OPS; op++) {
+            if (baseline.latencies[op].length == 0)
+                continue;
+            System.out.printf("  %-22s p50 %+d ns, p99 %+d ns, p999 %+d ns, alloc %+.1f B/call%n",
+                    Result.opName(op),
+                    haruka.percentile(op, 0.5) - baseline.percentile(op, 0.5),
+                    haruka.percentile(op, 0.99) - baseline.percentile(op, 0.99),
+                    haruka.percentile(op, 0.999) - baseline.percentile(op, 0.999),
+                    haruka.bytesPerCall(op) - baseline.bytesPerCall(op));
+        }
+
+        if (spansFile != null) {
+            writeSpans(trace, pm);
+        }
+    }
+
+    /*
+     * Replays the trace once more with tracing on, apart from the measured replays so the
+     * spans don't skew them, and writes the spans.
+     */
+    private void writeSpans(Trace trace, FakePackageManager pm) throws Exception {
+        HarukaTrace.clear();
+        HarukaTrace.setEnabled(true);
+        new Replayer(trace, pm, HarukaComputer::new, 1).replay(false, false);
+        HarukaTrace.setEnabled(false);
+
+        int spans = HarukaTrace.export(spansFile, (int) ProcessHandle.current().pid());
+        System.out.println();
+        System.out.println("[i] " + spans + " spans written to " + spansFile);
+    }
+
+    private Result replay(String mode, Trace trace, FakePackageManager pm,
+            Function<FakePackageManager, BaselineComputer> snapshots) throws InterruptedException {
+        Replayer replayer = new Replayer(trace, pm, snapshots, measuredReplays);
+        for (int i = 0; i < warmupReplays; i++) {
+            replayer.replay(false, false);
+        }
+
+        long elapsed = 0;
+        for (int i = 0; i < measuredReplays; i++) {
+            elapsed += replayer.replay(true, false);
+        }
+        replayer.replay(false, true);
+
+        return replayer.result(mode, elapsed);
+    }
+
+    /*
+     * Latencies and allocations of a mode, by kind of call.
+     * The last kind is every call together.
+     */
+    private static final class Result {
+        static final int OPS = 4;
+        static final int ALL = 3;
+
+        final String mode;
+        final long[][] latencies = new long[OPS][];
+        final long[] allocatedBytes = new long[OPS];
+        final long[] allocationCalls = new long[OPS];
+        double throughput;
+
+        Result(String mode) {
+            this.mode = mode;
+        }
+
+        static String opName(int op) {
+            return op == ALL ? "all" : Trace.opName(op);
+        }
+
+        long percentile(int op, double percentile) {
+            long[] values = latencies[op];
+            if (values.length == 0)
+                return 0;
+            return values[Math.min(values.length - 1, (int) (values.length * percentile))];
+        }
+
+        double bytesPerCall(int op) {
+            return allocationCalls[op] > 0 ? (double) allocatedBytes[op] / allocationCalls[op] : 0;
+        }
+
+        void print() {
+            for (int op = 0; op < OPS; op++) {
+                if (latencies[op].length == 0)
+                    continue;
+                System.out.printf("%-10s %-22s %10d %12s %10d %10d %10d %14.1f%n",
+                        mode, opName(op), latencies[op].length,
+                        op == ALL ? String.format("%.0f", throughput) : "",
+                        percentile(op, 0.5), percentile(op, 0.99), percentile(op, 0.999), bytesPerCall(op));
+            }
+        }
+    }
+
+    /*
+     * Replays a trace with one thread per trace thread. All threads share the current snapshot,
+     * which snapshot events replace, as a package change does in PMS.
+     */
+    private static final class Replayer {
+        private final FakePackageManager pm;
+        private final Function<FakePackageManager, BaselineComputer> snapshots;
+        private final List<Worker> workers = new ArrayList<>();
+        private volatile BaselineComputer computer;
+
+        Replayer(Trace trace, FakePackageManager pm, Function<FakePackageManager, BaselineComputer> snapshots,
+                int measuredReplays) {
+            this.pm = pm;
+            this.snapshots = snapshots;
+            this.computer = snapshots.apply(pm);
+            for (Map.Entry<String, List<Event>> thread : trace.threads.entrySet()) {
+                workers.add(new Worker(thread.getKey(), thread.getValue(), measuredReplays));
+            }
+        }
+
+        /*
+         * @return The wall time of the replay, in nanoseconds.
+         */
+        long replay(boolean recordLatencies, boolean recordAllocations) throws InterruptedException {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (Worker worker : workers) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    worker.run(recordLatencies, recordAllocations);
+                }, worker.name);
+                thread.start();
+                threads.add(thread);
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return System.nanoTime() - begin;
+        }
+
+        Result result(String mode, long elapsed) {
+            Result result = new Result(mode);
+            long calls = 0;
+            for (int op = 0; op < Result.OPS; op++) {
+                int count = 0;
+                for (Worker worker : workers) {
+                    count += worker.count(op);
+                }
+
+                long[] values = new long[count];
+                int position = 0;
+                for (Worker worker : workers) {
+                    position = worker.copyLatencies(op, values, position);
+                    result.allocatedBytes[op] += worker.allocatedBytes[op];
+                    result.allocationCalls[op] += worker.allocationCalls[op];
+                }
+                Arrays.sort(values);
+                result.latencies[op] = values;
+                if (op == Result.ALL) {
+                    calls = count;
+                }
+            }
+            result.throughput = calls * 1e9 / elapsed;
+            return result;
+        }
+
+        private final class Worker {
+            final String name;
+            final Event[] events;
+            // Latency of every measured call, event after event, replay after replay
+            final long[] latencies;
+            final long[] allocatedBytes = new long[Result.OPS];
+            final long[] allocationCalls = new long[Result.OPS];
+            int recorded;
+            // Keeps the results alive, so the calls can't be optimized away
+            long sink;
+
+            Worker(String name, List<Event> events, int measuredReplays) {
+                this.name = name;
+                this.events = events.toArray(new Event[0]);
+                this.latencies = new long[events.size() * measuredReplays];
+            }
+
+            void run(boolean recordLatencies, boolean recordAllocations) {
+                long threadId = Thread.currentThread().getId();
+                for (Event event : events) {
+                    long bytes = recordAllocations ? THREADS.getThreadAllocatedBytes(threadId) : 0;
+                    long begin = System.nanoTime();
+                    sink += call(event);
+                    long latency = System.nanoTime() - begin;
+
+                    if (recordLatencies) {
+                        latencies[recorded++] = latency;
+                    }
+                    if (recordAllocations) {
+                        bytes = THREADS.getThreadAllocatedBytes(threadId) - bytes;
+                        allocatedBytes[event.op] += bytes;
+                        allocatedBytes[Result.ALL] += bytes;
+                        allocationCalls[event.op]++;
+                        allocationCalls[Result.ALL]++;
+                    }
+                }
+            }
+
+            int call(Event event) {
+                switch (event.op) {
+                    case Trace.GET_PACKAGE_INFO:
+                        PackageInfo pi = computer.getPackageInfo(event.packageName, event.flags, event.userId);
+                        return pi != null ? 1 : 0;
+                    case Trace.GET_INSTALLED_PACKAGES:
+                        return computer.getInstalledPackages(event.flags, event.userId).size();
+                    default:
+                        computer = snapshots.apply(pm);
+                        return 0;
+                }
+            }
+
+            int count(int op) {
+                if (op == Result.ALL)
+                    return recorded;
+                int count = 0;
+                for (int i = 0; i < recorded; i++) {
+                    if (events[i % events.length].op == op) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+
+            int copyLatencies(int op, long[] target, int position) {
+                for (int i = 0; i < recorded; i++) {
+                    if (op == Result.ALL || events[i % events.length].op == op) {
+                        target[position++] = latencies[i];
+                    }
+                }
+                return position;
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package android.content.pm;
+
+/*
+ * Host stand-in for android.content.pm.PackageInfo, with just the fields Haruka touches.
+ */
+public class PackageInfo {
+    public String packageName;
+    public Signature[] signatures;
+    public SigningInfo signingInfo;
+    public Object[] permissions;
+    public String[] requestedPermissions;
+    public int[] requestedPermissionsFlags;
+}
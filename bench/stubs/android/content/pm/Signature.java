@@ -0,0 +1,31 @@
+package android.content.pm;
+
+/*
+ * Host stand-in for android.content.pm.Signature.
+ * Decodes the hex string like the real one does, since that's part of the cost we measure.
+ */
+public class Signature {
+    private final byte[] signature;
+
+    public Signature(String text) {
+        final int n = text.length() / 2;
+        final byte[] sig = new byte[n];
+        for (int i = 0; i < n; i++) {
+            int hi = Character.digit(text.charAt(i * 2), 16);
+            int lo = Character.digit(text.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0 || text.length() % 2 != 0) {
+                throw new IllegalArgumentException("Invalid signature");
+            }
+            sig[i] = (byte) ((hi << 4) | lo);
+        }
+        this.signature = sig;
+    }
+
+    public Signature(byte[] signature) {
+        this.signature = signature.clone();
+    }
+
+    public byte[] toByteArray() {
+        return signature.clone();
+    }
+}
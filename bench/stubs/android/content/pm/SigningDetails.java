@@ -0,0 +1,26 @@
+package android.content.pm;
+
+/*
+ * Host stand-in for the hidden android.content.pm.SigningDetails.
+ */
+public final class SigningDetails {
+    public @interface SignatureSchemeVersion {
+        int SIGNING_BLOCK_V3 = 3;
+    }
+
+    private final Signature[] signatures;
+    private final int signatureSchemeVersion;
+
+    public SigningDetails(Signature[] signatures, int signatureSchemeVersion) {
+        this.signatures = signatures;
+        this.signatureSchemeVersion = signatureSchemeVersion;
+    }
+
+    public Signature[] getSignatures() {
+        return signatures;
+    }
+
+    public int getSignatureSchemeVersion() {
+        return signatureSchemeVersion;
+    }
+}
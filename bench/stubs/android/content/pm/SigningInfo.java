@@ -0,0 +1,16 @@
+package android.content.pm;
+
+/*
+ * Host stand-in for android.content.pm.SigningInfo.
+ */
+public final class SigningInfo {
+    private final SigningDetails signingDetails;
+
+    public SigningInfo(SigningDetails signingDetails) {
+        this.signingDetails = signingDetails;
+    }
+
+    public Signature[] getApkContentsSigners() {
+        return signingDetails.getSignatures();
+    }
+}
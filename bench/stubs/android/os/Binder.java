@@ -0,0 +1,24 @@
+package android.os;
+
+/*
+ * Host stand-in for android.os.Binder.
+ * There are no binder calls on the host, so the calling uid is whatever the harness sets for
+ * the current thread (the system uid by default).
+ */
+public class Binder {
+    private static final ThreadLocal<Integer> CALLING_UID = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 1000;
+        }
+    };
+
+    public static final int getCallingUid() {
+        return CALLING_UID.get();
+    }
+
+    // Host only
+    public static void setCallingUid(int uid) {
+        CALLING_UID.set(uid);
+    }
+}
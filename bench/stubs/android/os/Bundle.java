@@ -0,0 +1,19 @@
+package android.os;
+
+import java.util.HashMap;
+
+/*
+ * Host stand-in for android.os.Bundle, backed by a plain HashMap.
+ */
+public class Bundle {
+    private final HashMap<String, Object> map = new HashMap<>();
+
+    public String getString(String key) {
+        Object value = map.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public void putString(String key, String value) {
+        map.put(key, value);
+    }
+}
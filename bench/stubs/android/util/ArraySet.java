@@ -0,0 +1,8 @@
+package android.util;
+
+import java.util.HashSet;
+
+// Host stand-in for android.util.ArraySet.
+public class ArraySet<E> extends HashSet<E> {
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,6 @@
+package lanchon.dexpatcher.annotation;
+
+// Host stand-in for the dexpatcher annotation of the same name.
+public @interface DexEdit {
+    boolean contentOnly() default false;
+}
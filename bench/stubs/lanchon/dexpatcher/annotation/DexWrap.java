@@ -0,0 +1,5 @@
+package lanchon.dexpatcher.annotation;
+
+// Host stand-in for the dexpatcher annotation of the same name.
+public @interface DexWrap {
+}
@@ -34,6 +34,24 @@ if [[ ${#sdk_range[@]} -eq 0 ]]; then
     done
 fi
 
+# Core sources built for an SDK: an SDK can replace any of them with its own copy, at the
+# same path under src/sdk<N>, e.g. when a class it uses diverges from the other SDKs.
+sdk_source() {
+    if [[ -f "src/sdk$1/$2" ]]; then
+        echo "src/sdk$1/$2"
+    else
+        echo "src/$2"
+    fi
+}
+
+core_sources() {
+    for source in $(find src/io/github/shomy/haruka -name "*.java"); do
+        if [[ ! -f "src/sdk$1/${source#src/}" ]]; then
+            echo "$source"
+        fi
+    done
+}
+
 # Cleanup and prepare
 rm -rf out build
 mkdir -p out build
@@ -44,12 +62,22 @@ mkdir -p out/haruka_core
 javac -d out/haruka_core \
     $(find src/lanchon/dexpatcher/annotation -name "Dex*.java") \
     src/io/github/shomy/haruka/Haruka.java \
-    src/io/github/shomy/haruka/Reflector.java
+    src/io/github/shomy/haruka/HarukaMetrics.java \
+    src/io/github/shomy/haruka/HarukaTrace.java \
+    src/io/github/shomy/haruka/SpoofProfileStore.java
 
 jar cvf build/haruka_core.jar -C out/haruka_core .
 d2j-jar2dex build/haruka_core.jar -o build/haruka_core.dex
 echo "[i] haruka core compiled successfully."
 
+echo "Compiling haruka installer"
+mkdir -p out/haruka_installer
+javac -d out/haruka_installer $(find installer/src -name "*.java")
+
+jar cvf build/haruka_installer.jar -C out/haruka_installer .
+d2j-jar2dex build/haruka_installer.jar -o build/haruka_installer.dex
+echo "[i] haruka installer compiled successfully."
+
 # Loop through each SDK and compile
 for sdk_value in "${sdk_range[@]}"; do
     android_jar="sdk/android$sdk_value.jar"
@@ -69,8 +97,25 @@ for sdk_value in "${sdk_range[@]}"; do
         javac -cp "$android_jar:build/haruka_core.jar" -Xlint:unchecked -d out/ \
             $(find src/lanchon/dexpatcher/annotation -name "Dex*.java") \
             src/sdk$sdk_value/com/android/server/pm/ComputerEngine.java \
+            src/sdk$sdk_value/com/android/server/pm/DumpHelper.java \
+            src/sdk$sdk_value/com/android/server/pm/PackageManagerService.java \
+            src/sdk$sdk_value/com/android/server/pm/permission/PermissionManagerService.java \
+            src/sdk$sdk_value/com/android/server/pm/permission/PermissionManagerServiceImpl.java \
+            $(sdk_source "$sdk_value" io/github/shomy/haruka/PlatformSdkBridge.java) \
+            src/io/github/shomy/haruka/SdkBridge.java \
             src/io/github/shomy/haruka/HarukaPackageWrapper.java \
-            src/io/github/shomy/haruka/HarukaSignatureSpoofingCore.java
+            src/io/github/shomy/haruka/HarukaSignatureSpoofingCore.java \
+            src/io/github/shomy/haruka/SpoofQuery.java \
+            src/io/github/shomy/haruka/HarukaSpoofCache.java \
+            src/io/github/shomy/haruka/SpoofGrantState.java \
+            src/io/github/shomy/haruka/SpoofVisibilityPolicy.java \
+            src/io/github/shomy/haruka/UidBitsetMap.java \
+            src/io/github/shomy/haruka/SpoofedSigningArtifacts.java \
+            src/io/github/shomy/haruka/SpoofRegistry.java \
+            src/io/github/shomy/haruka/SpoofScan.java \
+            src/io/github/shomy/haruka/SpoofProfile.java \
+            src/io/github/shomy/haruka/HarukaLog.java \
+            src/io/github/shomy/haruka/HarukaWarmup.java
     elif [[ "$only_platform_spoof" == true ]]; then
         echo "Compiling only platform spoofing files for SDK $sdk_value..."
         javac -cp "$android_jar" -Xlint:unchecked -d out \
@@ -80,7 +125,7 @@ for sdk_value in "${sdk_range[@]}"; do
     else
         echo "Compiling all source files for SDK $sdk_value..."
         javac -cp "$android_jar" -Xlint:unchecked -d out \
-            $(find src/io/github/shomy/haruka -name "*.java") \
+            $(core_sources "$sdk_value") \
             $(find src/lanchon/dexpatcher/annotation -name "Dex*.java") \
             $(find src/sdk$sdk_value -name "*.java")
     fi
@@ -0,0 +1,74 @@
+package io.github.shomy.haruka.installer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Reads the classes defined by a dex file, straight from its class_defs table.
+ * Only the header and the tables needed to get from a class_def to its descriptor are touched.
+ */
+final class DexClasses {
+    private static final int HEADER_SIZE = 0x70;
+    private static final int CLASS_DEF_SIZE = 32;
+
+    private DexClasses() {
+    }
+
+    /*
+     * @param dex The contents of the dex file.
+     * @return The descriptors of the classes it defines (as in Lcom/android/server/pm/ComputerEngine;).
+     */
+    static Set<String> definedClasses(byte[] dex) throws IOException {
+        if (dex.length < HEADER_SIZE || dex[0] != 'd' || dex[1] != 'e' || dex[2] != 'x' || dex[3] != '\n')
+            throw new IOException("Not a dex file");
+
+        ByteBuffer buffer = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        int stringIdsOffset = buffer.getInt(0x3c);
+        int typeIdsOffset = buffer.getInt(0x44);
+        int classDefsSize = buffer.getInt(0x60);
+        int classDefsOffset = buffer.getInt(0x64);
+
+        Set<String> classes = new HashSet<>(classDefsSize * 2);
+        try {
+            for (int i = 0; i < classDefsSize; i++) {
+                int typeIndex = buffer.getInt(classDefsOffset + i * CLASS_DEF_SIZE);
+                int stringIndex = buffer.getInt(typeIdsOffset + typeIndex * 4);
+                int stringDataOffset = buffer.getInt(stringIdsOffset + stringIndex * 4);
+                classes.add(readString(dex, stringDataOffset));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt dex file", e);
+        }
+        return classes;
+    }
+
+    /*
+     * Reads a string_data_item. Type descriptors are plain ASCII in practice, but MUTF-8
+     * is decoded anyway so that odd names still compare correctly.
+     */
+    private static String readString(byte[] dex, int offset) {
+        // Skip the uleb128 utf16_size, the string is NUL terminated
+        while ((dex[offset++] & 0x80) != 0) {
+        }
+
+        StringBuilder builder = new StringBuilder();
+        while (true) {
+            int a = dex[offset++] & 0xff;
+            if (a == 0) {
+                return builder.toString();
+            } else if (a < 0x80) {
+                builder.append((char) a);
+            } else if ((a & 0xe0) == 0xc0) {
+                int b = dex[offset++] & 0x3f;
+                builder.append((char) (((a & 0x1f) << 6) | b));
+            } else {
+                int b = dex[offset++] & 0x3f;
+                int c = dex[offset++] & 0x3f;
+                builder.append((char) (((a & 0x0f) << 12) | (b << 6) | c));
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package io.github.shomy.haruka.installer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Replaces a few entries of a jar, copying every other entry byte for byte.
+ * 
+ * Nothing but the replaced entries is inflated or deflated again, which is what makes
+ * patching services.jar cheap: it's mostly a file copy.
+ */
+final class JarRewriter {
+    // Extra field used by zipalign/apksigner to pad the local header of stored entries
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+    // Stored dex files must be 4 bytes aligned for ART to map them
+    private static final int ALIGNMENT = 4;
+
+    private JarRewriter() {
+    }
+
+    /*
+     * Rewrites the jar with the given entries replaced (or added, if not already in the jar).
+     * Replaced entries keep their compression method, added ones use the one of the first
+     * replaced entry.
+     * 
+     * @param jar The jar to rewrite. It's replaced atomically once the new one is complete.
+     * @param replacements The new contents, by entry name.
+     */
+    static void replaceEntries(File jar, Map<String, byte[]> replacements) throws IOException {
+        File temp = new File(jar.getPath() + ".tmp");
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r");
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 256 * 1024)) {
+            ZipDirectory directory = ZipDirectory.read(in);
+
+            ZipDirectory.Entry template = null;
+            for (String name : replacements.keySet()) {
+                if (template == null) {
+                    template = directory.find(name);
+                }
+            }
+            if (template == null)
+                throw new IOException("None of the replaced entries is in " + jar);
+
+            // Local records are written in the same order they were in
+            List<ZipDirectory.Entry> byOffset = new ArrayList<>(directory.entries);
+            Collections.sort(byOffset, new Comparator<ZipDirectory.Entry>() {
+                @Override
+                public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+                    return Long.compare(a.localHeaderOffset, b.localHeaderOffset);
+                }
+            });
+
+            Map<String, byte[]> centralRecords = new LinkedHashMap<>();
+            long position = 0;
+            byte[] buffer = new byte[256 * 1024];
+            for (ZipDirectory.Entry entry : byOffset) {
+                byte[] replacement = replacements.get(entry.name);
+                if (replacement != null) {
+                    NewEntry written = writeEntry(out, position, entry.name, replacement, entry);
+                    centralRecords.put(entry.name, written.centralRecord);
+                    position += written.length;
+                    continue;
+                }
+
+                byte[] record = entry.centralRecord.clone();
+                ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) position);
+                centralRecords.put(entry.name, record);
+
+                in.seek(entry.localHeaderOffset);
+                long remaining = entry.localRecordLength;
+                while (remaining > 0) {
+                    int count = (int) Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                position += entry.localRecordLength;
+            }
+
+            for (Map.Entry<String, byte[]> replacement : replacements.entrySet()) {
+                if (directory.find(replacement.getKey()) == null) {
+                    NewEntry written = writeEntry(out, position, replacement.getKey(), replacement.getValue(), template);
+                    centralRecords.put(replacement.getKey(), written.centralRecord);
+                    position += written.length;
+                }
+            }
+
+            // The central directory keeps its original order, added entries at the end
+            long directoryOffset = position;
+            long directorySize = 0;
+            for (ZipDirectory.Entry entry : directory.entries) {
+                byte[] record = centralRecords.remove(entry.name);
+                out.write(record);
+                directorySize += record.length;
+            }
+            for (byte[] record : centralRecords.values()) {
+                out.write(record);
+                directorySize += record.length;
+            }
+
+            int entryCount = directory.entries.size() + countAdded(directory, replacements);
+            ByteBuffer end = ByteBuffer.allocate(ZipDirectory.END_SIZE + directory.comment.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(ZipDirectory.END_SIGNATURE);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) entryCount);
+            end.putShort((short) entryCount);
+            end.putInt((int) directorySize);
+            end.putInt((int) directoryOffset);
+            end.putShort((short) directory.comment.length);
+            end.put(directory.comment);
+            out.write(end.array());
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(jar)) {
+            temp.delete();
+            throw new IOException("Can't replace " + jar);
+        }
+    }
+
+    private static int countAdded(ZipDirectory directory, Map<String, byte[]> replacements) {
+        int count = 0;
+        for (String name : replacements.keySet()) {
+            if (directory.find(name) == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class NewEntry {
+        final long length;
+        final byte[] centralRecord;
+
+        NewEntry(long length, byte[] centralRecord) {
+            this.length = length;
+            this.centralRecord = centralRecord;
+        }
+    }
+
+    /*
+     * Writes the local record of an entry, taking the method, timestamps and attributes
+     * from the template entry.
+     */
+    private static NewEntry writeEntry(OutputStream out, long position, String name, byte[] contents,
+            ZipDirectory.Entry template) throws IOException {
+        byte[] nameBytes = name.getBytes("UTF-8");
+
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+
+        byte[] data;
+        byte[] extra;
+        if (template.method == ZipDirectory.STORED) {
+            data = contents;
+            long dataOffset = position + ZipDirectory.LOCAL_HEADER_SIZE + nameBytes.length + 6;
+            int padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+            extra = ByteBuffer.allocate(6 + padding).order(ByteOrder.LITTLE_ENDIAN)
+                    .putShort((short) ALIGNMENT_EXTRA_ID)
+                    .putShort((short) (2 + padding))
+                    .putShort((short) ALIGNMENT)
+                    .array();
+        } else {
+            data = deflate(contents);
+            extra = new byte[0];
+        }
+
+        // Sizes are known upfront, so there's no data descriptor
+        int flags = template.flags & 0x0800;
+        ByteBuffer templateRecord = ByteBuffer.wrap(template.centralRecord).order(ByteOrder.LITTLE_ENDIAN);
+
+        ByteBuffer local = ByteBuffer.allocate(ZipDirectory.LOCAL_HEADER_SIZE + nameBytes.length + extra.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(ZipDirectory.LOCAL_HEADER_SIGNATURE);
+        local.putShort(templateRecord.getShort(6));
+        local.putShort((short) flags);
+        local.putShort((short) template.method);
+        local.putShort((short) template.time);
+        local.putShort((short) template.date);
+        local.putInt((int) crc.getValue());
+        local.putInt(data.length);
+        local.putInt(contents.length);
+        local.putShort((short) nameBytes.length);
+        local.putShort((short) extra.length);
+        local.put(nameBytes);
+        local.put(extra);
+        out.write(local.array());
+        out.write(data);
+
+        ByteBuffer central = ByteBuffer.allocate(ZipDirectory.CENTRAL_HEADER_SIZE + nameBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(ZipDirectory.CENTRAL_HEADER_SIGNATURE);
+        central.putShort(templateRecord.getShort(4));
+        central.putShort(templateRecord.getShort(6));
+        central.putShort((short) flags);
+        central.putShort((short) template.method);
+        central.putShort((short) template.time);
+        central.putShort((short) template.date);
+        central.putInt((int) crc.getValue());
+        central.putInt(data.length);
+        central.putInt(contents.length);
+        central.putShort((short) nameBytes.length);
+        central.putShort((short) 0);
+        central.putShort((short) 0);
+        central.putShort((short) 0);
+        central.putShort(templateRecord.getShort(36));
+        central.putInt(templateRecord.getInt(38));
+        central.putInt((int) position);
+        central.put(nameBytes);
+
+        return new NewEntry(local.capacity() + data.length, central.array());
+    }
+
+    private static byte[] deflate(byte[] contents) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length / 2);
+            byte[] chunk = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.shomy.haruka.installer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Lets the module patch only the dex files of services.jar that Haruka actually touches,
+ * instead of running dexpatcher over the whole jar and zipping it back from scratch.
+ * 
+ * The classes edited by Haruka (ComputerEngine, ReconcilePackageUtils...) are the ones defined both
+ * by the patches and by services.jar, so there's no list to keep in sync with the patches.
+ * 
+ * Runs under dalvikvm on the device, and on any JVM:
+ *   plan <services.jar> <patch.dex>...         prints the dex entries defining the patched classes
+ *   extract <services.jar> <out.jar> <entry>...
+ *                                              writes the entries to a new jar, as classes.dex,
+ *                                              classes2.dex..., to be patched by dexpatcher
+ *   replace <services.jar> <patched dir> <entry>...
+ *                                              replaces the entries with the patched dex files,
+ *                                              in the same order, and copies the rest as is
+ */
+public final class PatchPlanner {
+    private static final Pattern DEX_ENTRY = Pattern.compile("classes(\\d*)\\.dex");
+
+    private PatchPlanner() {
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length >= 3 && args[0].equals("plan")) {
+                List<String> patches = new ArrayList<>();
+                for (int i = 2; i < args.length; i++) {
+                    patches.add(args[i]);
+                }
+                for (String entry : plan(new File(args[1]), patches)) {
+                    System.out.println(entry);
+                }
+            } else if (args.length >= 4 && args[0].equals("extract")) {
+                extract(new File(args[1]), new File(args[2]), entries(args, 3));
+            } else if (args.length >= 4 && args[0].equals("replace")) {
+                replace(new File(args[1]), new File(args[2]), entries(args, 3));
+            } else {
+                System.err.println("Usage: PatchPlanner plan <jar> <patch.dex>...");
+                System.err.println("       PatchPlanner extract <jar> <out.jar> <entry>...");
+                System.err.println("       PatchPlanner replace <jar> <patched dir> <entry>...");
+                System.exit(2);
+            }
+        } catch (IOException e) {
+            System.err.println("PatchPlanner: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Finds the dex entries of the jar defining a class that the patches define too.
+     * 
+     * @param jar The jar to patch.
+     * @param patches The patch dex files.
+     * @return The names of the entries to patch, in jar order.
+     */
+    static List<String> plan(File jar, List<String> patches) throws IOException {
+        Set<String> patchedClasses = new HashSet<>();
+        for (String patch : patches) {
+            patchedClasses.addAll(DexClasses.definedClasses(Files.readAllBytes(new File(patch).toPath())));
+        }
+
+        List<String> targets = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            ZipDirectory directory = ZipDirectory.read(in);
+            for (ZipDirectory.Entry entry : directory.entries) {
+                if (!DEX_ENTRY.matcher(entry.name).matches())
+                    continue;
+
+                Set<String> classes = DexClasses.definedClasses(ZipDirectory.readData(in, entry));
+                for (String patched : patchedClasses) {
+                    if (classes.contains(patched)) {
+                        System.err.println(entry.name + ": " + patched);
+                        if (!targets.contains(entry.name)) {
+                            targets.add(entry.name);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (targets.isEmpty())
+            throw new IOException("No dex file of " + jar + " defines a patched class");
+        return targets;
+    }
+
+    /*
+     * Writes the given dex entries to a new multi-dex jar, renamed in order.
+     */
+    static void extract(File jar, File out, List<String> entries) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r");
+                ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(out))) {
+            // dexpatcher reads it right away, so don't waste time compressing it
+            zip.setLevel(0);
+            ZipDirectory directory = ZipDirectory.read(in);
+            for (int i = 0; i < entries.size(); i++) {
+                ZipDirectory.Entry entry = directory.find(entries.get(i));
+                if (entry == null)
+                    throw new IOException("No " + entries.get(i) + " in " + jar);
+
+                zip.putNextEntry(new ZipEntry(dexName(i + 1)));
+                zip.write(ZipDirectory.readData(in, entry));
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /*
+     * Replaces the entries with the dex files dexpatcher wrote to the patched directory.
+     * If dexpatcher had to split them into more dex files, the extra ones are added after
+     * the last dex entry of the jar.
+     */
+    static void replace(File jar, File patchedDirectory, List<String> entries) throws IOException {
+        List<File> patched = new ArrayList<>();
+        for (int i = 1; new File(patchedDirectory, dexName(i)).isFile(); i++) {
+            patched.add(new File(patchedDirectory, dexName(i)));
+        }
+        if (patched.size() < entries.size())
+            throw new IOException("Expected at least " + entries.size() + " patched dex files in " + patchedDirectory
+                    + ", found " + patched.size());
+
+        int lastIndex = 1;
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            for (ZipDirectory.Entry entry : ZipDirectory.read(in).entries) {
+                Matcher matcher = DEX_ENTRY.matcher(entry.name);
+                if (matcher.matches() && !matcher.group(1).isEmpty()) {
+                    lastIndex = Math.max(lastIndex, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+
+        Map<String, byte[]> replacements = new LinkedHashMap<>();
+        for (int i = 0; i < patched.size(); i++) {
+            String name = i < entries.size() ? entries.get(i) : dexName(++lastIndex);
+            replacements.put(name, Files.readAllBytes(patched.get(i).toPath()));
+        }
+        JarRewriter.replaceEntries(jar, replacements);
+    }
+
+    private static List<String> entries(String[] args, int from) {
+        List<String> entries = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            entries.add(args[i]);
+        }
+        return entries;
+    }
+
+    private static String dexName(int index) {
+        return index == 1 ? "classes.dex" : "classes" + index + ".dex";
+    }
+}
@@ -0,0 +1,188 @@
+package io.github.shomy.haruka.installer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * The central directory of a zip (or jar), read directly from the end of the file.
+ * 
+ * Unlike ZipFile, this keeps the raw central directory records and the local header offsets,
+ * so entries can be copied to another zip byte for byte, without inflating them.
+ */
+final class ZipDirectory {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    static final class Entry {
+        final String name;
+        // The whole central directory record, including name, extra field and comment
+        final byte[] centralRecord;
+        final int flags;
+        final int method;
+        final int time;
+        final int date;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        // Length of the local header, data and data descriptor, up to the next entry
+        long localRecordLength;
+
+        Entry(String name, byte[] centralRecord) {
+            ByteBuffer record = ByteBuffer.wrap(centralRecord).order(ByteOrder.LITTLE_ENDIAN);
+            this.name = name;
+            this.centralRecord = centralRecord;
+            this.flags = record.getShort(8) & 0xffff;
+            this.method = record.getShort(10) & 0xffff;
+            this.time = record.getShort(12) & 0xffff;
+            this.date = record.getShort(14) & 0xffff;
+            this.compressedSize = record.getInt(20) & 0xffffffffL;
+            this.size = record.getInt(24) & 0xffffffffL;
+            this.localHeaderOffset = record.getInt(42) & 0xffffffffL;
+        }
+    }
+
+    final List<Entry> entries;
+    final long centralDirectoryOffset;
+    final byte[] comment;
+
+    private ZipDirectory(List<Entry> entries, long centralDirectoryOffset, byte[] comment) {
+        this.entries = entries;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.comment = comment;
+    }
+
+    Entry find(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name))
+                return entry;
+        }
+        return null;
+    }
+
+    static ZipDirectory read(RandomAccessFile file) throws IOException {
+        // The end record is followed by a comment of up to 64KiB, so we search for it backwards
+        long length = file.length();
+        int tailLength = (int) Math.min(length, END_SIZE + 0xffff);
+        byte[] tail = new byte[tailLength];
+        file.seek(length - tailLength);
+        file.readFully(tail);
+        ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (buffer.getInt(i) == END_SIGNATURE && i + END_SIZE + (buffer.getShort(i + 20) & 0xffff) == tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new IOException("No end of central directory record, not a zip file");
+
+        int entryCount = buffer.getShort(end + 10) & 0xffff;
+        long directorySize = buffer.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = buffer.getInt(end + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || directoryOffset == 0xffffffffL)
+            throw new IOException("Zip64 files are not supported");
+        if (directoryOffset + directorySize > length - tailLength + end)
+            throw new IOException("Central directory out of bounds");
+
+        byte[] comment = new byte[tailLength - end - END_SIZE];
+        System.arraycopy(tail, end + END_SIZE, comment, 0, comment.length);
+
+        byte[] directory = new byte[(int) directorySize];
+        file.seek(directoryOffset);
+        file.readFully(directory);
+        ByteBuffer records = ByteBuffer.wrap(directory).order(ByteOrder.LITTLE_ENDIAN);
+
+        List<Entry> entries = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.length || records.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new IOException("Corrupt central directory at entry " + i);
+
+            int nameLength = records.getShort(position + 28) & 0xffff;
+            int extraLength = records.getShort(position + 30) & 0xffff;
+            int commentLength = records.getShort(position + 32) & 0xffff;
+            int recordLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            byte[] record = new byte[recordLength];
+            System.arraycopy(directory, position, record, 0, recordLength);
+            // Bit 11 means UTF-8 names, and jars always use UTF-8 anyway
+            String name = new String(directory, position + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+            entries.add(new Entry(name, record));
+            position += recordLength;
+        }
+
+        // Every local record ends where the next one (or the central directory) starts
+        List<Entry> byOffset = new ArrayList<>(entries);
+        Collections.sort(byOffset, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.localHeaderOffset, b.localHeaderOffset);
+            }
+        });
+        for (int i = 0; i < byOffset.size(); i++) {
+            long next = i + 1 < byOffset.size() ? byOffset.get(i + 1).localHeaderOffset : directoryOffset;
+            byOffset.get(i).localRecordLength = next - byOffset.get(i).localHeaderOffset;
+        }
+
+        return new ZipDirectory(entries, directoryOffset, comment);
+    }
+
+    /*
+     * Reads and, if needed, inflates the data of an entry.
+     */
+    static byte[] readData(RandomAccessFile file, Entry entry) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        file.seek(entry.localHeaderOffset);
+        file.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException("Corrupt local header of " + entry.name);
+
+        long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (buffer.getShort(26) & 0xffff) + (buffer.getShort(28) & 0xffff);
+        byte[] data = new byte[(int) entry.compressedSize];
+        file.seek(dataOffset);
+        file.readFully(data);
+
+        if (entry.method == STORED)
+            return data;
+        if (entry.method != DEFLATED)
+            throw new IOException("Unsupported compression method " + entry.method + " of " + entry.name);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.size);
+            byte[] chunk = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated data of " + entry.name);
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt data of " + entry.name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
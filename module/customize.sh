@@ -4,6 +4,8 @@ DEX2OAT="dex2oat64"
 ARCH="arm64"
 DEXPATCHER="$MODPATH/patcher/dexpatcher.dex"
 ZIPBINARY="$MODPATH/patcher/zip.arm"
+PLANNER="$MODPATH/patcher/haruka_installer.dex"
+HARUKA_LOG="/data/adb/haruka.log"
 
 spawn_dalvikvm() {
     if [ ! "$BOOTMODE" ]; then
@@ -22,8 +24,8 @@ check_for_fake_package_perm() {
     fi
 
     mkdir -p $TMPDIR/unpacked
-    unzip -o $MODPATH/haruka/services.jar "classes*.dex" -d $TMPDIR/unpacked/ >> /data/adb/haruka.log 2>&1
-    ls $TMPDIR/unpacked >> /data/adb/haruka.log 2>&1
+    unzip -o $MODPATH/haruka/services.jar "classes*.dex" -d $TMPDIR/unpacked/ >> $HARUKA_LOG 2>&1
+    ls $TMPDIR/unpacked >> $HARUKA_LOG 2>&1
     if strings $TMPDIR/unpacked/classes*.dex | grep -qF "android.permission.FAKE_PACKAGE_SIGNATURE"; then
         abort "The rom you're using already has signature spoofing. Aborting"
     fi
@@ -35,7 +37,7 @@ setup_env() {
         abort
     fi
 
-    rm /data/adb/haruka.log
+    rm $HARUKA_LOG
 
     mkdir -p $MODPATH/haruka
     mkdir -p $MODPATH/haruka/patch
@@ -54,6 +56,42 @@ call_dexpatcher() {
         --output "$output_folder" "$input_file" "$@"
 }
 
+call_planner() {
+    # $1 = command (plan, extract or replace), see PatchPlanner
+    spawn_dalvikvm -classpath "$PLANNER" io.github.shomy.haruka.installer.PatchPlanner "$@"
+}
+
+# Patches only the dex files of services.jar defining a class Haruka edits,
+# and swaps them in the jar without touching the other entries
+patch_affected_dex() {
+    local targets
+    targets=$(call_planner plan $MODPATH/haruka/services.jar $patches 2>> $HARUKA_LOG) || return 1
+    ui_print "Patching $(echo $targets)"
+
+    call_planner extract $MODPATH/haruka/services.jar $MODPATH/haruka/targets.jar $targets >> $HARUKA_LOG 2>&1 || return 1
+    call_dexpatcher $MODPATH/haruka/targets.jar $MODPATH/haruka/patch $patches >> $HARUKA_LOG 2>&1 || return 1
+    call_planner replace $MODPATH/haruka/services.jar $MODPATH/haruka/patch $targets >> $HARUKA_LOG 2>&1
+}
+
+# Patches the whole services.jar and zips every dex file back
+patch_all_dex() {
+    rm -rf $MODPATH/haruka/patch
+    mkdir -p $MODPATH/haruka/patch
+    call_dexpatcher $MODPATH/haruka/services.jar $MODPATH/haruka/patch $patches >> $HARUKA_LOG 2>&1
+
+    # Don't use quotes here, or the zip command will fail for some reason
+    "${ZIPBINARY}" -d "$MODPATH/haruka/services.jar" classes*.dex >> $HARUKA_LOG 2>&1
+    "${ZIPBINARY}" -j "$MODPATH/haruka/services.jar" $MODPATH/haruka/patch/classes*.dex >> $HARUKA_LOG 2>&1
+}
+
+# The planner leaves services.jar untouched when it fails (e.g. on zip64 jars),
+# so we can still patch everything
+inject_haruka() {
+    if [ ! -f "$PLANNER" ] || ! patch_affected_dex; then
+        ui_print "Patching all the dex files"
+        patch_all_dex
+    fi
+}
 
 haruka_set_permissions() {
     chown 0:0 ${1}
@@ -101,7 +139,7 @@ if [ $BOOTMODE == true ]; then
     check_for_fake_package_perm
 
     ui_print "1st check passed. Continuing"
-    unzip -o "$ZIPFILE" "module.prop" "patcher/*" -d "$MODPATH" >> /data/adb/haruka.log 2>&1
+    unzip -o "$ZIPFILE" "module.prop" "patcher/*" -d "$MODPATH" >> $HARUKA_LOG 2>&1
 
     ui_print "Checking for SDK compatibility"
     ui_print "System SDK is $API"
@@ -117,13 +155,9 @@ if [ $BOOTMODE == true ]; then
     patches="$core_patch $current_version_patch"
     mkdir -p $MODPATH/haruka/patch
     ui_print "Injecting haruka"
-    call_dexpatcher $MODPATH/haruka/services.jar $MODPATH/haruka/patch $patches >> /data/adb/haruka.log 2>&1
+    inject_haruka
     cp -r $MODPATH/haruka/patch $MODPATH/
 
-    # Don't use quotes here, or the zip command will fail for some reason
-    "${ZIPBINARY}" -d "$MODPATH/haruka/services.jar" classes*.dex >> /data/adb/haruka.log 2>&1
-    "${ZIPBINARY}" -j "$MODPATH/haruka/services.jar" $MODPATH/haruka/patch/classes*.dex >> /data/adb/haruka.log 2>&1
-
     ui_print "Injection completed"
 
     ui_print "Optimizing dex files"
@@ -131,7 +165,7 @@ if [ $BOOTMODE == true ]; then
     "$DEX2OAT" --dex-file=$MODPATH/haruka/services.jar --instruction-set=$ARCH --oat-file="$MODPATH/haruka/patch/services.odex" --dump-timings --dump-stats --dump-pass-timings --abort-on-hard-verifier-error --abort-on-soft-verifier-error
 
     DEX2OAT_EXITCODE=$?
-    logcat -d -v time | awk -v start="$START_TIME" '$0 > start' | grep -i $DEX2OAT >> /data/adb/haruka.log 2>&1
+    logcat -d -v time | awk -v start="$START_TIME" '$0 > start' | grep -i $DEX2OAT >> $HARUKA_LOG 2>&1
 
     if [ $DEX2OAT_EXITCODE -ne 0 ]; then
         abort "Failed to optimize dex files"
@@ -163,7 +197,7 @@ if [ $BOOTMODE == true ]; then
     rm -rf $MODPATH/haruka
     rm -rf $MODPATH/patcher
     rm -rf $MODPATH/patch # Just in case
-    rm /data/adb/haruka.log # Remove the log file if we succeded 
+    rm $HARUKA_LOG # Remove the log file if we succeded 
 
     ui_print "All done!"
 
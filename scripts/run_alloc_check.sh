@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Builds and runs the allocation check of the no-op query path (see NoOpAllocationCheck).
+# Android classes are replaced by the stand-ins in bench/stubs, so this runs on any JVM.
+#
+# Usage (from the repository root): ./scripts/run_alloc_check.sh [-n calls]
+
+set -e
+
+out_dir="build/alloc_check"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir"
+
+echo "[i] Compiling allocation check..."
+javac -Xlint:all -Werror -d "$out_dir" \
+    $(find bench/stubs -name "*.java") \
+    $(find src/io/github/shomy/haruka -name "*.java") \
+    $(find bench/src -name "*.java")
+
+echo "[i] Running..."
+java -cp "$out_dir" io.github.shomy.haruka.bench.replay.NoOpAllocationCheck "$@"
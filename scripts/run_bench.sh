@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Builds and runs the host benchmarks of the Haruka spoofing hot path.
+# Android classes are replaced by the stand-ins in bench/stubs, so this runs on any JVM.
+#
+# Usage (from the repository root): ./scripts/run_bench.sh [-f regex] [-wi n] [-i n] [-t ms]
+
+set -e
+
+out_dir="build/bench"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir"
+
+echo "[i] Compiling benchmarks..."
+javac -Xlint:all -Werror -d "$out_dir" \
+    $(find bench/stubs -name "*.java") \
+    $(find src/io/github/shomy/haruka -name "*.java") \
+    $(find bench/src -name "*.java")
+
+echo "[i] Running benchmarks..."
+java -cp "$out_dir" io.github.shomy.haruka.bench.HarukaBenchmarks "$@"
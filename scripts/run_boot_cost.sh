@@ -0,0 +1,23 @@
+#!/bin/bash
+
+# Builds and runs the startup cost check of the first generatePackageInfo (see BootCostCheck).
+# Android classes are replaced by the stand-ins in bench/stubs, so this runs on any JVM.
+#
+# Usage (from the repository root): ./scripts/run_boot_cost.sh [-max-plain-classes n] [-max-signatures-classes n]
+#     [-max-spoof-classes n] [-max-reconcile-classes n] [-max-ms ms]
+
+set -e
+
+out_dir="build/boot_cost"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir"
+
+echo "[i] Compiling startup cost check..."
+javac -Xlint:all -Werror -d "$out_dir" \
+    $(find bench/stubs -name "*.java") \
+    $(find src/io/github/shomy/haruka -name "*.java") \
+    $(find bench/src -name "*.java")
+
+echo "[i] Running..."
+java -cp "$out_dir" io.github.shomy.haruka.bench.replay.BootCostCheck "$@"
@@ -0,0 +1,73 @@
+#!/bin/bash
+
+# Builds and runs the host checks of the installer (see InstallerCheck), then runs the
+# install step of module/customize.sh on a services.jar that the planner can patch, and on a
+# zip64 one it rejects, which must fall back to patching every dex file.
+# dalvikvm is replaced by the host JVM, and dexpatcher by a stand-in marking the dex files it gets.
+#
+# Usage (from the repository root): ./scripts/run_installer_check.sh
+
+set -e
+
+out_dir="build/installer_check"
+root_dir="$(pwd)"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir/classes"
+
+echo "[i] Compiling installer checks..."
+javac -Xlint:all -Werror -d "$out_dir/classes" \
+    $(find installer/src -name "*.java") \
+    $(find bench/installer -name "*.java")
+
+echo "[i] Running installer checks..."
+java -cp "$out_dir/classes" io.github.shomy.haruka.installer.InstallerCheck "$out_dir/work"
+
+check="java -cp $root_dir/$out_dir/classes io.github.shomy.haruka.installer.InstallerCheck"
+$check fixtures "$out_dir/fixtures"
+(cd "$out_dir/classes" && zip -qr "$root_dir/$out_dir/haruka_installer.jar" .)
+
+# Only the functions of customize.sh, not the install itself
+source <(sed '/^#####/,$d' module/customize.sh)
+
+ui_print() { echo "  $*"; }
+abort() { echo "[!] $*"; exit 1; }
+spawn_dalvikvm() { java "$@"; }
+call_dexpatcher() {
+    local input_file="$1"
+    local output_folder="$2"
+    shift 2
+    $check dexpatch "$output_folder" "$input_file" "$@"
+}
+
+PLANNER="$root_dir/$out_dir/haruka_installer.jar"
+ZIPBINARY="zip"
+API=34
+patches="$root_dir/$out_dir/fixtures/patch.dex"
+
+# $1 = fixture jar, $2 = expected output, then the dex entries that must end up patched
+run_install() {
+    local fixture="$1"
+    local expected="$2"
+    shift 2
+
+    MODPATH="$root_dir/$out_dir/module-$(basename "$fixture" .jar)"
+    HARUKA_LOG="$MODPATH/haruka.log"
+    mkdir -p "$MODPATH/haruka/patch" "$MODPATH/cwd"
+    cp "$out_dir/fixtures/$fixture" "$MODPATH/haruka/services.jar"
+
+    echo "[i] Installing on $fixture..."
+    local output
+    output=$(cd "$MODPATH/cwd" && inject_haruka)
+    echo "$output"
+    if ! echo "$output" | grep -qF "$expected"; then
+        echo "[!] Expected \"$expected\", see $HARUKA_LOG"
+        exit 1
+    fi
+    $check verify "$MODPATH/haruka/services.jar" "$@"
+}
+
+run_install services.jar "Patching classes2.dex classes3.dex" classes2.dex classes3.dex
+run_install services64.jar "Patching all the dex files" classes.dex classes2.dex
+
+echo "[i] customize.sh checks passed"
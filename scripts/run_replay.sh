@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Builds and runs the trace replay of the Haruka spoofing path (see TraceReplay for the options).
+# Android classes are replaced by the stand-ins in bench/stubs, so this runs on any JVM.
+#
+# Usage (from the repository root): ./scripts/run_replay.sh [-trace file] [-save file] [-packages n] ...
+
+set -e
+
+out_dir="build/replay"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir"
+
+echo "[i] Compiling trace replay..."
+javac -Xlint:all -Werror -d "$out_dir" \
+    $(find bench/stubs -name "*.java") \
+    $(find src/io/github/shomy/haruka -name "*.java") \
+    $(find bench/src -name "*.java")
+
+echo "[i] Replaying..."
+java -cp "$out_dir" io.github.shomy.haruka.bench.replay.TraceReplay "$@"
@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Builds and runs the multi-core scaling benchmark of generatePackageInfo (see ScalingBench).
+# Android classes are replaced by the stand-ins in bench/stubs, so this runs on any JVM.
+#
+# Usage (from the repository root): ./scripts/run_scaling.sh [-threads 1,2,4,8,16] [-t ms] [-min-efficiency 0.7]
+
+set -e
+
+out_dir="build/scaling"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir"
+
+echo "[i] Compiling scaling benchmark..."
+javac -Xlint:all -Werror -d "$out_dir" \
+    $(find bench/stubs -name "*.java") \
+    $(find src/io/github/shomy/haruka -name "*.java") \
+    $(find bench/src -name "*.java")
+
+echo "[i] Running..."
+java -cp "$out_dir" io.github.shomy.haruka.bench.replay.ScalingBench "$@"
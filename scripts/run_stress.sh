@@ -0,0 +1,22 @@
+#!/bin/bash
+
+# Builds and runs the concurrency stress of SpoofRegistry (see SpoofRegistryStress for the options).
+# Android classes are replaced by the stand-ins in bench/stubs, so this runs on any JVM.
+#
+# Usage (from the repository root): ./scripts/run_stress.sh [-t ms] [-threads max] [-versions n] [-min-efficiency 0.7]
+
+set -e
+
+out_dir="build/stress"
+
+rm -rf "$out_dir"
+mkdir -p "$out_dir"
+
+echo "[i] Compiling stress test..."
+javac -Xlint:all -Werror -d "$out_dir" \
+    $(find bench/stubs -name "*.java") \
+    $(find src/io/github/shomy/haruka -name "*.java") \
+    $(find bench/src -name "*.java")
+
+echo "[i] Running..."
+java -cp "$out_dir" io.github.shomy.haruka.bench.SpoofRegistryStress "$@"
@@ -2,6 +2,23 @@ package io.github.shomy.haruka;
 
 import lanchon.dexpatcher.annotation.DexAdd;
 
+/*
+ * Haruka is patched into services.jar, so whatever it initializes, and every class it loads,
+ * would land on the boot path of system_server. To keep it off, Haruka bootstraps lazily:
+ * 
+ * - Hooks let every call through after a single static check on its flags
+ *   (HarukaSignatureSpoofingCore.requestsSignatures) until one actually asks for signatures.
+ *   Haruka and HarukaSignatureSpoofingCore only hold constants, so loading them runs nothing.
+ * - Reconciled packages are classified by their permissions first (SpoofScan), and batches
+ *   without a package that can spoof are let through right after.
+ * - Every subsystem keeps its state in its own class, or in a holder class nested in it,
+ *   so it's only set up on first use: the metrics (HarukaMetrics), the profiles (SpoofRegistry,
+ *   SpoofProfileStore.Default), the grant states (SpoofGrantState) and the trace buffers
+ *   (HarukaTrace.Buffers).
+ * 
+ * New code on a hook must keep it that way. The startup cost is checked on the host by
+ * bench/src/io/github/shomy/haruka/bench/replay/BootCostCheck.java.
+ */
 @DexAdd
 public class Haruka {
 	@DexAdd
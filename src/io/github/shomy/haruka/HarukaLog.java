@@ -0,0 +1,186 @@
+package io.github.shomy.haruka;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.util.Log;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Logging facade for the Haruka hot paths.
+ * 
+ * Most of what Haruka logs is about a misconfigured package, and would be logged again on
+ * every query for it. To avoid flooding logcat (and wasting binder thread time), messages:
+ * - are identified by a kind and the package they're about, and logged at most once per
+ *   WINDOW_MILLIS for each (package, kind) pair. Suppressed messages don't allocate anything.
+ * - are only formatted and written to logcat by a background thread, which drains a bounded
+ *   ring buffer. If the buffer is full, messages are dropped.
+ */
+@DexAdd
+public final class HarukaLog {
+    // Message kinds
+    public static final int PERMISSION_FLAGS_MISMATCH = 0;
+    public static final int PERMISSION_NOT_GRANTED = 1;
+    public static final int METADATA_MISSING = 2;
+    public static final int METADATA_INVALID = 3;
+    public static final int SIGNATURE_INVALID = 4;
+    public static final int SIGNATURE_DECODE_FAILED = 5;
+    public static final int SPOOF_FAILED = 6;
+    public static final int VISIBILITY_SLOTS_EXHAUSTED = 7;
+
+    // Templates of the kinds above, `%s` is replaced by the package name
+    private static final String[] TEMPLATES = {
+            "requestedPermissions and requestedPermissionsFlags have different length. Check your app (%s) for eventual errors.",
+            "The user didn't grant the FAKE_PACKAGE_SIGNATURE permission to %s",
+            "Cannot get metadata for package %s (metadata == null)",
+            "Fake signature metadata for package %s is invalid (not a string, or null).",
+            "fake-signature metadata of package %s is not a valid hex encoded signature",
+            "There was an error while decoding the fake signature of package %s",
+            "There was an error while spoofing signature for package %s",
+            "Too many packages restrict who sees their fake signature, the one of %s is hidden from every app",
+    };
+    private static final boolean[] ERRORS = { false, false, false, false, true, true, true, true };
+
+    // Same message for the same package is logged at most once per window
+    private static final long WINDOW_MILLIS = 60_000;
+    // Slots of the deduplication table. Two keys landing in the same slot evict each other,
+    // which at worst logs a message more often than needed.
+    private static final int DEDUP_SLOTS = 256;
+    private static final int RING_SIZE = 64;
+
+    private static final AtomicReferenceArray<LastLogged> LAST_LOGGED = new AtomicReferenceArray<>(DEDUP_SLOTS);
+
+    // Ring buffer, guarded by RING
+    private static final Object RING = new Object();
+    private static final int[] ringKinds = new int[RING_SIZE];
+    private static final String[] ringPackages = new String[RING_SIZE];
+    private static final Throwable[] ringThrowables = new Throwable[RING_SIZE];
+    private static long ringHead = 0;
+    private static long ringTail = 0;
+    private static Thread drainer;
+
+    private HarukaLog() {
+    }
+
+    /*
+     * Logs a message about a package.
+     * 
+     * @param kind The kind of the message, one of the constants of this class.
+     * @param packageName The package the message is about.
+     */
+    public static void log(int kind, String packageName) {
+        log(kind, packageName, null);
+    }
+
+    /*
+     * Logs a message about a package, along with the error that caused it.
+     * 
+     * @param kind The kind of the message, one of the constants of this class.
+     * @param packageName The package the message is about.
+     * @param throwable The error, or null.
+     */
+    public static void log(int kind, String packageName, Throwable throwable) {
+        if (!shouldLog(kind, packageName)) {
+            HarukaMetrics.LOG_SUPPRESSED.increment();
+            return;
+        }
+
+        synchronized (RING) {
+            if (ringTail - ringHead == RING_SIZE) {
+                HarukaMetrics.LOG_DROPPED.increment();
+                return;
+            }
+
+            int slot = (int) (ringTail % RING_SIZE);
+            ringKinds[slot] = kind;
+            ringPackages[slot] = packageName;
+            ringThrowables[slot] = throwable;
+            ringTail++;
+
+            if (drainer == null) {
+                drainer = new Thread(new Drainer(), "HarukaLog");
+                drainer.setDaemon(true);
+                drainer.setPriority(Thread.MIN_PRIORITY);
+                drainer.start();
+            }
+            RING.notify();
+        }
+    }
+
+    /*
+     * Checks whether the message wasn't already logged in the current window, and if so,
+     * marks it as logged. Only allocates when the message is actually going to be logged.
+     */
+    private static boolean shouldLog(int kind, String packageName) {
+        int slot = ((packageName.hashCode() * 31 + kind) & 0x7fffffff) % DEDUP_SLOTS;
+        long now = System.currentTimeMillis();
+
+        LastLogged last = LAST_LOGGED.get(slot);
+        if (last != null && last.kind == kind && last.packageName.equals(packageName)
+                && now - last.timeMillis < WINDOW_MILLIS) {
+            return false;
+        }
+
+        // If another thread logged the same message in the meantime, let it win
+        return LAST_LOGGED.compareAndSet(slot, last, new LastLogged(kind, packageName, now));
+    }
+
+    /*
+     * Body of the background thread, which formats and writes the queued messages.
+     */
+    private static void drain() {
+        while (true) {
+            int kind;
+            String packageName;
+            Throwable throwable;
+
+            synchronized (RING) {
+                while (ringHead == ringTail) {
+                    try {
+                        RING.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                int slot = (int) (ringHead % RING_SIZE);
+                kind = ringKinds[slot];
+                packageName = ringPackages[slot];
+                throwable = ringThrowables[slot];
+                ringPackages[slot] = null;
+                ringThrowables[slot] = null;
+                ringHead++;
+            }
+
+            String message = String.format(TEMPLATES[kind], packageName);
+            if (ERRORS[kind]) {
+                Log.e(Haruka.TAG, message, throwable);
+            } else if (throwable != null) {
+                Log.w(Haruka.TAG, message, throwable);
+            } else {
+                Log.w(Haruka.TAG, message);
+            }
+        }
+    }
+
+    /*
+     * Runnable of the background thread. Not a lambda, as our dex toolchain can't desugar them.
+     */
+    private static final class Drainer implements Runnable {
+        @Override
+        public void run() {
+            drain();
+        }
+    }
+
+    private static final class LastLogged {
+        final int kind;
+        final String packageName;
+        final long timeMillis;
+
+        LastLogged(int kind, String packageName, long timeMillis) {
+            this.kind = kind;
+            this.packageName = packageName;
+            this.timeMillis = timeMillis;
+        }
+    }
+}
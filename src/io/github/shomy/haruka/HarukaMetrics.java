@@ -0,0 +1,214 @@
+package io.github.shomy.haruka;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Runtime counters and latency histograms of Haruka.
+ * 
+ * Everything here is recorded from binder threads, so recording is lock free and
+ * doesn't allocate: counters are LongAdders (striped per thread under contention),
+ * and histograms are a fixed set of LongAdder buckets.
+ * 
+ * The metrics can be read with `adb shell dumpsys package version`, see ComputerEngine.dump.
+ */
+@DexAdd
+public final class HarukaMetrics {
+    private static final ArrayList<Counter> COUNTERS = new ArrayList<>();
+    private static final ArrayList<Histogram> HISTOGRAMS = new ArrayList<>();
+
+    // ComputerEngine.generatePackageInfo. Only queries asking for signatures are counted, the
+    // others never get past the first check (see Haruka).
+    public static final Counter GENERATE_PACKAGE_INFO_SIGNATURE_CALLS = counter("generatePackageInfo.signatureCalls");
+    public static final Counter GENERATE_PACKAGE_INFO_SPOOF_PATH = counter("generatePackageInfo.spoofPath");
+    public static final Counter GENERATE_PACKAGE_INFO_SPOOFED = counter("generatePackageInfo.spoofed");
+    public static final Counter GENERATE_PACKAGE_INFO_SPOOF_HIDDEN = counter("generatePackageInfo.spoofHidden");
+    public static final Counter SPOOF_CACHE_MISSES = counter("generatePackageInfo.spoofCacheMisses");
+    public static final Histogram GENERATE_PACKAGE_INFO_SPOOF_PATH_LATENCY = histogram("generatePackageInfo.spoofPath");
+    // HarukaSignatureSpoofingCore
+    public static final Counter IS_SPOOFING_PERMISSION_GRANTED_CALLS = counter("isSpoofingPermissionGranted.calls");
+    public static final Counter IS_SPOOFING_PERMISSION_GRANTED_DENIED = counter("isSpoofingPermissionGranted.denied");
+    public static final Counter CREATE_SPOOF_ENTRY_INVALID = counter("createSpoofEntry.invalid");
+    public static final Counter VISIBILITY_SLOTS_EXHAUSTED = counter("visibilityPolicy.slotsExhausted");
+    public static final Histogram CREATE_SPOOF_ENTRY_LATENCY = histogram("createSpoofEntry");
+    public static final Counter SPOOF_SIGNATURE_CALLS = counter("spoofSignature.calls");
+    public static final Counter SPOOF_SIGNATURE_FAILURES = counter("spoofSignature.failures");
+    // SpoofGrantState
+    public static final Counter GRANT_STATE_HITS = counter("grantState.hits");
+    public static final Counter GRANT_STATE_MISSES = counter("grantState.misses");
+    public static final Counter GRANT_STATE_INVALIDATIONS = counter("grantState.invalidations");
+    // SpoofProfile
+    public static final Counter SPOOF_PROFILE_CREATE_CALLS = counter("spoofProfile.create.calls");
+    public static final Counter SPOOF_PROFILE_SCANNED = counter("spoofProfile.scanned");
+    // SpoofProfileStore
+    public static final Counter PROFILE_STORE_HITS = counter("profileStore.hits");
+    public static final Counter PROFILE_STORE_STALE = counter("profileStore.stale");
+    public static final Counter PROFILE_STORE_REJECTED = counter("profileStore.rejected");
+    public static final Counter PROFILE_STORE_WRITE_FAILURES = counter("profileStore.writeFailures");
+    // HarukaWarmup
+    public static final Counter WARMUP_PACKAGES = counter("warmup.packages");
+    public static final Histogram WARMUP_LATENCY = histogram("warmup");
+    // HarukaLog
+    public static final Counter LOG_SUPPRESSED = counter("log.suppressed");
+    public static final Counter LOG_DROPPED = counter("log.dropped");
+    // ReconcilePackageUtils.reconcilePackages. Only batches with a package asking Haruka for
+    // something are counted, the others never get past classifying them (see SpoofScan).
+    public static final Counter RECONCILE_PACKAGES_CALLS = counter("reconcilePackages.calls");
+    public static final Counter RECONCILE_PACKAGES_PLATFORM_SPOOFED = counter("reconcilePackages.platformSpoofed");
+    public static final Counter RECONCILE_PACKAGES_SHARED_USER_SPOOFED = counter("reconcilePackages.sharedUserSpoofed");
+    public static final Histogram RECONCILE_PACKAGES_LATENCY = histogram("reconcilePackages.prePass");
+
+    private HarukaMetrics() {
+    }
+
+    private static Counter counter(String name) {
+        Counter counter = new Counter(name);
+        COUNTERS.add(counter);
+        return counter;
+    }
+
+    private static Histogram histogram(String name) {
+        Histogram histogram = new Histogram(name);
+        HISTOGRAMS.add(histogram);
+        return histogram;
+    }
+
+    /*
+     * Prints every metric in a human readable form.
+     * 
+     * @param pw The writer to print the metrics to.
+     * @param prefix The prefix of every printed line, used for indentation.
+     */
+    public static void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Haruka " + Haruka.VERSION + " metrics:");
+        for (Counter counter : COUNTERS) {
+            pw.println(prefix + "  " + counter.name + ": " + counter.sum());
+        }
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.dump(pw, prefix + "  ");
+        }
+    }
+
+    /*
+     * A monotonic counter.
+     */
+    public static final class Counter {
+        private final String name;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long sum() {
+            return value.sum();
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /*
+     * Latency histogram with fixed power of two buckets, from 256ns up to ~134ms.
+     * Bucket i counts the samples in [2^(i+7), 2^(i+8)) nanoseconds, the first and last
+     * buckets also count everything below and above them.
+     */
+    public static final class Histogram {
+        private static final int FIRST_BUCKET_SHIFT = 8;
+        private static final int BUCKETS = 20;
+
+        private final String name;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        private Histogram(String name) {
+            this.name = name;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /*
+         * Records a sample.
+         * 
+         * @param nanos The latency, in nanoseconds.
+         */
+        public void record(long nanos) {
+            int bucket = (64 - Long.numberOfLeadingZeros(nanos)) - FIRST_BUCKET_SHIFT;
+            if (bucket < 0) {
+                bucket = 0;
+            } else if (bucket >= BUCKETS) {
+                bucket = BUCKETS - 1;
+            }
+            buckets[bucket].increment();
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /*
+         * Returns the upper bound, in nanoseconds, of the bucket holding the given percentile.
+         * 
+         * @param percentile The percentile, between 0 and 100.
+         */
+        public long percentileUpperBound(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= target) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            return 1L << (bucket + FIRST_BUCKET_SHIFT);
+        }
+
+        private void dump(PrintWriter pw, String prefix) {
+            long samples = count.sum();
+            long mean = samples > 0 ? totalNanos.sum() / samples : 0;
+            pw.println(prefix + name + ": count=" + samples + " mean=" + mean + "ns"
+                    + " p50<=" + percentileUpperBound(50) + "ns"
+                    + " p99<=" + percentileUpperBound(99) + "ns"
+                    + " p999<=" + percentileUpperBound(99.9) + "ns");
+
+            StringBuilder line = new StringBuilder(prefix).append("  buckets:");
+            for (int i = 0; i < BUCKETS; i++) {
+                long value = buckets[i].sum();
+                if (value > 0) {
+                    line.append(" <").append(upperBound(i)).append("ns=").append(value);
+                }
+            }
+            pw.println(line);
+        }
+    }
+}
@@ -1,13 +1,10 @@
 package io.github.shomy.haruka;
 
-import java.util.Arrays;
-
-import android.os.Bundle;
-
 /*
  *
  * Helper class to wrap all the needed information of a package,
  * in the hope of making it SDK agnostic.
+ * The metadata is not part of it: it's only read once, into the SpoofProfile of the package.
  * 
 */
 public class HarukaPackageWrapper {
@@ -15,14 +12,15 @@ public class HarukaPackageWrapper {
     private final String[] requestedPermissions;
     private final int[] requestedPermissionsFlags;
     private final long flags;
-    private final Bundle metaData;
+    // Last permission looked up and its position, see positionOf
+    private String lastPermission;
+    private int lastPosition;
 
     public HarukaPackageWrapper(String packageName, String[] requestedPermissions, int[] requestedPermissionsFlags,
-            long flags, Bundle metaData) {
+            long flags) {
         this.packageName = packageName;
         this.requestedPermissions = requestedPermissions;
         this.requestedPermissionsFlags = requestedPermissionsFlags;
-        this.metaData = metaData;
         this.flags = flags;
     }
 
@@ -42,16 +40,50 @@ public class HarukaPackageWrapper {
         return flags;
     }
 
-    public Bundle getMetaData() {
-        return metaData;
+    /*
+     * Checks whether the package requests the permission.
+     */
+    public boolean hasPermission(String permission) {
+        return positionOf(permission) >= 0;
     }
 
-    public boolean hasPermission(String permission) {
-        if (requestedPermissions == null || requestedPermissionsFlags == null)
+    /*
+     * Checks whether the package requests the permission, and the permission is granted.
+     * Always false if the permission flags are not known.
+     */
+    public boolean isPermissionGranted(String permission) {
+        if (requestedPermissionsFlags == null)
             return false;
 
-        boolean hasPermission = Arrays.asList(this.requestedPermissions).contains(permission);
-        return hasPermission;
+        int position = positionOf(permission);
+        // 0x2 corresponds to PackageInfo.REQUESTED_PERMISSION_GRANTED
+        return position >= 0 && position < requestedPermissionsFlags.length
+                && (requestedPermissionsFlags[position] & 0x2) != 0;
+    }
+
+    /*
+     * Position of the permission in the requested permissions, -1 if it's not requested.
+     * Both checks look up the same permission, so the position of the last one is kept
+     * and the requested permissions are scanned only once per query. A wrapper only lives
+     * for a single query, so this is the cheapest there is: no index to build, nothing allocated.
+     */
+    private int positionOf(String permission) {
+        if (permission.equals(lastPermission))
+            return lastPosition;
+
+        int position = -1;
+        if (requestedPermissions != null) {
+            for (int i = 0; i < requestedPermissions.length; i++) {
+                // PMS interns permission names, so this is mostly a reference comparison
+                if (permission.equals(requestedPermissions[i])) {
+                    position = i;
+                    break;
+                }
+            }
+        }
+        lastPermission = permission;
+        lastPosition = position;
+        return position;
     }
 
 }
\ No newline at end of file
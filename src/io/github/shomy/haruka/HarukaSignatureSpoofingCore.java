@@ -1,12 +1,6 @@
 package io.github.shomy.haruka;
 
-import java.lang.reflect.Array;
-import java.security.PublicKey;
-import java.util.Map;
-
 import android.content.pm.PackageInfo;
-import android.util.ArraySet;
-import android.util.Log;
 import lanchon.dexpatcher.annotation.DexAdd;
 
 public class HarukaSignatureSpoofingCore {
@@ -15,9 +9,29 @@ public class HarukaSignatureSpoofingCore {
     @DexAdd
     public static final String FAKE_PACKAGE_SIGNATURE = "fake-signature";
     @DexAdd
+    public static final String FAKE_PACKAGE_SIGNATURE_VISIBLE_TO = "fake-signature-visible-to";
+    @DexAdd
     public static final String NANODROID_SPOOFING = "org.spoofing";
     @DexAdd
     public static final String HARUKA_SPOOFING = "io.github.shomy.haruka.framework";
+    /*
+     * 64 = PackageManager.GET_SIGNATURES (Old signatures)
+     * 134217728 = PackageManager.GET_SIGNING_CERTIFICATES
+     */
+    @DexAdd
+    public static final long SIGNATURE_FLAGS = 64 | 134217728;
+
+    /*
+     * Checks whether a query asks for the signatures of the package, the only thing we spoof.
+     * Most queries don't, and they're let through before doing anything else.
+     * 
+     * This is the first thing every hook runs, so this class must not have any static state:
+     * loading it has to stay free, see Haruka.
+     */
+    @DexAdd
+    public static boolean requestsSignatures(long flags) {
+        return (flags & SIGNATURE_FLAGS) != 0;
+    }
 
     /*
      * Checks whether the user has granted signature spoofing permission.
@@ -28,64 +42,69 @@ public class HarukaSignatureSpoofingCore {
      */
     @DexAdd
     public static boolean isSpoofingPermissionGranted(HarukaPackageWrapper hp) {
+        long span = HarukaTrace.begin();
+        try {
+            return checkSpoofingPermissionGranted(hp);
+        } finally {
+            HarukaTrace.end(HarukaTrace.IS_SPOOFING_PERMISSION_GRANTED, span);
+        }
+    }
+
+    @DexAdd
+    private static boolean checkSpoofingPermissionGranted(HarukaPackageWrapper hp) {
+        HarukaMetrics.IS_SPOOFING_PERMISSION_GRANTED_CALLS.increment();
+
+        // Without the permission flags there's no grant state to check
+        if (hp.getRequestedPermissions() == null || hp.getRequestedPermissionsFlags() == null)
+            return false;
+
         if (hp.getRequestedPermissions().length != hp.getRequestedPermissionsFlags().length) {
             // This shouldn't happen. We avoid spoofing signature to avoid crashing the
             // system.
-            Log.w(Haruka.TAG, "requestedPermissions and requestedPermissionsFlags have different length.");
-            Log.w(Haruka.TAG, "Check your app (" + hp.getPackageName() + ") for eventual errors.");
+            HarukaLog.log(HarukaLog.PERMISSION_FLAGS_MISMATCH, hp.getPackageName());
             return false;
         }
 
-        for (int i = 0; i < hp.getRequestedPermissions().length; i++) {
-            if (!hp.getRequestedPermissions()[i].equals(FAKE_PACKAGE_SIGNATURE_PERM))
-                continue;
-
-            // Check if the user has granted Signature Spoofing permission.
-            // If the permission was granted, this shouldn't be equal to 0.
-            // 0x2 corresponds to PackageInfo.REQUESTED_PERMISSION_GRANTED
-            boolean hasGranted = (hp.getRequestedPermissionsFlags()[i] & 0x2) != 0;
+        if (!hp.hasPermission(FAKE_PACKAGE_SIGNATURE_PERM))
+            return false;
 
-            if (!hasGranted)
-                Log.w(Haruka.TAG,
-                        "The user didn't grant the FAKE_PACKAGE_SIGNATURE permission to " + hp.getPackageName());
+        // Check if the user has granted Signature Spoofing permission.
+        // The wrapper found the permission above, so this doesn't scan again.
+        boolean hasGranted = hp.isPermissionGranted(FAKE_PACKAGE_SIGNATURE_PERM);
 
-            return hasGranted;
+        if (!hasGranted) {
+            HarukaMetrics.IS_SPOOFING_PERMISSION_GRANTED_DENIED.increment();
+            HarukaLog.log(HarukaLog.PERMISSION_NOT_GRANTED, hp.getPackageName());
         }
 
-        return false;
+        return hasGranted;
     }
 
     /*
-     * This method just checks if a given package has signature spoofing
+     * Builds the spoof entry of a package: whether it spoofs its signature, and if so,
+     * the artifacts built from the fake signature of its profile and who may see them.
+     * 
+     * The result only depends on the snapshot, so it can be cached for the whole
+     * PMS snapshot (see HarukaSpoofCache), while the permission grant is checked per query.
      */
     @DexAdd
-    public static boolean hasSignatureSpoofing(HarukaPackageWrapper hp) {
-        boolean hasPermission = hp.hasPermission(FAKE_PACKAGE_SIGNATURE_PERM);
-
-        // We don't log anything for packages without permissions.
-        // The for loop above and this check if basically to avoid spamming the logs for
-        // every package
-        if (!hasPermission) {
-            return false;
-        }
-        // Just to make people life easier while debugging, we log eventual missing
-        // stuff
-        if (hp.getMetaData() == null) {
-            // Small check to avoid spamming with NanoDroid org.spoofing apk
-            if (!(hp.getPackageName().equals(NANODROID_SPOOFING)) && !(hp.getPackageName().equals(HARUKA_SPOOFING))) {
-                Log.w(Haruka.TAG, "Cannot get metadata for package " + hp.getPackageName() + " (metadata == null)");
-            }
-            return false;
+    public static HarukaSpoofCache.Entry createSpoofEntry(SpoofProfile profile, long lastUpdateTime,
+            SdkBridge bridge, SpoofVisibilityPolicy policy) {
+        if (!profile.canSpoof()) {
+            return HarukaSpoofCache.NOT_SPOOFING;
         }
 
-        boolean isMetaDataInvalid = (hp.getMetaData().getString(FAKE_PACKAGE_SIGNATURE) instanceof String) == false;
-        if (isMetaDataInvalid || hp.getMetaData().getString(FAKE_PACKAGE_SIGNATURE) == null) {
-            Log.w(Haruka.TAG, "Fake signature metadata for package " + hp.getPackageName()
-                    + " is invalid (not a string, or null).");
-            return false;
+        long span = HarukaTrace.begin();
+        long start = System.nanoTime();
+        SpoofedSigningArtifacts artifacts = SpoofedSigningArtifacts.obtain(profile, lastUpdateTime, bridge);
+        HarukaMetrics.CREATE_SPOOF_ENTRY_LATENCY.record(System.nanoTime() - start);
+        HarukaTrace.end(HarukaTrace.CREATE_SPOOF_ENTRY, span);
+        if (artifacts == null) {
+            HarukaMetrics.CREATE_SPOOF_ENTRY_INVALID.increment();
+            return HarukaSpoofCache.NOT_SPOOFING;
         }
 
-        return true;
+        return new HarukaSpoofCache.Entry(artifacts, policy, policy.slotOf(profile.getPackageName()));
     }
 
     /*
@@ -94,74 +113,47 @@ public class HarukaSignatureSpoofingCore {
      * 
      * This patch supports new changes needed by microG, as well the Android 9+
      * GET_SIGNING_CERTIFICATES flag (which new apps use).
+     * 
+     * Here we spoof both the classic signatures and the new SigningInfo fields,
+     * to allow compatibility
+     * between old and new apps (microg as an example for the latter, and Lanchon's
+     * Signature Spoofing checker for the first), but only the ones the caller asked for,
+     * just like PMS does. Through the SdkBridge of the entry, it basically does this:
+     * 
+     * 
+     * pi.signatures = new Signature[] { new Signature(fakeSignature) };
+     * pi.signingInfo = new SigningInfo(
+     * new SigningDetails(
+     * pi.signatures,
+     * SigningDetails.SignatureSchemeVersion.SIGNING_BLOCK_V3
+     * ));
      */
     @DexAdd
-    public static PackageInfo spoofSignature(PackageInfo pi, long flags, HarukaPackageWrapper hp,
-            Map<String, Class<?>> classMap) {
-        /*
-         * 64 = PackageManager.GET_SIGNATURES (Old signatures)
-         * 134217728 = PackageManager.GET_SIGNING_CERTIFICATES
-         */
-        if ((flags & 64) == 0 && (flags & 134217728) == 0) {
+    public static PackageInfo spoofSignature(PackageInfo pi, long flags, HarukaSpoofCache.Entry entry) {
+        if (!requestsSignatures(flags)) {
             // The app didn't request package signature, thus the fields have to be null
             return pi;
         }
 
-        if (hp.getMetaData() == null) {
+        if (!entry.isSpoofing()) {
             return pi;
         }
-        // We can safely assume this is valid, as it is being checked before this method
-        // is called
-        String fakeSignature = hp.getMetaData().getString(FAKE_PACKAGE_SIGNATURE);
-
-        if (fakeSignature == null || !(fakeSignature instanceof String)) {
-            Log.e(Haruka.TAG, "fake-signature metadata is null (" + hp.getPackageName() + ")");
-            return pi;
-        }
-
-        /*
-         * Here we spoof both the classic signatures and the new SigningDetails fields,
-         * to allow compatibility
-         * between old and new apps (microg as an example for the latter, and Lanchon's
-         * Signature Spoofing checker for the first)
-         * 
-         * The code looks weird because of the use of reflection, as it will be shared
-         * between different SDKs versions. It basically does this:
-         * 
-         * 
-         * pi.signatures = new Signature[] { new Signature(fakeSignature) };
-         * pi.signingInfo = new SigningInfo(
-         * new SigningDetails(
-         * pi.signatures,
-         * SigningDetails.SignatureSchemeVersion.SIGNING_BLOCK_V3,
-         * SigningDetails.toSigningKeys(pi.signatures),
-         * null
-         * ));
-         */
-
-        Class<?> signatureClass = classMap.get("Signature");
-        Class<?> signingDetailsClass = classMap.get("SigningDetails");
-        Class<?> signingInfoClass = classMap.get("SigningInfo");
 
+        HarukaMetrics.SPOOF_SIGNATURE_CALLS.increment();
+        long span = HarukaTrace.begin();
+        SpoofedSigningArtifacts artifacts = entry.getArtifacts();
+        SdkBridge bridge = artifacts.getBridge();
         try {
-            Object signatureInstance = Reflector.newInstance(signatureClass, fakeSignature);
-            Object signaturesArray = Reflector.newArray(signatureClass, 1);
-            Array.set(signaturesArray, 0, signatureInstance);
-
-            Reflector.set(pi, "signatures", signaturesArray);
-
-            Object signingDetailsInstance = Reflector.newInstance(signingDetailsClass,
-                    signaturesArray,
-                    (int) 3);
-
-            Object signingInfoInstance = Reflector.newInstance(signingInfoClass, signingDetailsInstance);
-
-            Reflector.set(pi, "signingInfo", signingInfoInstance);
+            if ((flags & 64) != 0)
+                bridge.setSignatures(pi, artifacts.newSignatures());
+            if ((flags & 134217728) != 0)
+                bridge.setSigningInfo(pi, artifacts.getSigningInfo());
         } catch (Exception e) {
-            Log.e(Haruka.TAG, "There was an error while spoofing signature for package " + pi.packageName, e);
-
+            HarukaMetrics.SPOOF_SIGNATURE_FAILURES.increment();
+            HarukaLog.log(HarukaLog.SPOOF_FAILED, pi.packageName, e);
         }
 
+        HarukaTrace.end(HarukaTrace.SPOOF_SIGNATURE, span);
         return pi;
     }
 }
\ No newline at end of file
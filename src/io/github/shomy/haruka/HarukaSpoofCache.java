@@ -0,0 +1,86 @@
+package io.github.shomy.haruka;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Cache of the spoof state of packages, bound to a single PackageManagerService snapshot.
+ * 
+ * ComputerEngine instances are immutable snapshots of the package state: every change
+ * in PMS creates a new one. By keeping one of these caches per snapshot, a new snapshot
+ * simply starts with an empty cache, so we never have to invalidate anything by hand.
+ * 
+ * Only the state that is part of the snapshot is cached here (whether the package can spoof,
+ * and the artifacts built from its metadata). Runtime permission grants are not part of the
+ * snapshot, they're cached per user in SpoofGrantState instead.
+ * 
+ * Which packages may spoof isn't found out per snapshot: SpoofRegistry has the profile of every
+ * package requesting FAKE_PACKAGE_SIGNATURE from the moment it's committed, so all the other
+ * packages skip Haruka after a lookup there, and nothing is cached (or allocated) for them.
+ */
+@DexAdd
+public class HarukaSpoofCache {
+    // Shared entry for every package that doesn't spoof its signature
+    public static final Entry NOT_SPOOFING = new Entry(null, SpoofVisibilityPolicy.UNRESTRICTED,
+            SpoofVisibilityPolicy.UNRESTRICTED_SLOT);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /*
+     * Returns the cached entry of the package, or null if it wasn't computed yet
+     * for this snapshot.
+     * 
+     * @param packageName The name of the package.
+     * @return The cached entry, or null.
+     */
+    public Entry get(String packageName) {
+        return entries.get(packageName);
+    }
+
+    /*
+     * Caches the entry of the package for this snapshot.
+     * If two threads compute the same package at the same time, the first one wins,
+     * and both end up using the same entry.
+     * 
+     * @param packageName The name of the package.
+     * @param entry The entry to cache.
+     * @return The entry that is now cached for the package.
+     */
+    public Entry put(String packageName, Entry entry) {
+        Entry previous = entries.putIfAbsent(packageName, entry);
+        return previous != null ? previous : entry;
+    }
+
+    /*
+     * Spoof decision of a package, along with its signing artifacts when the package spoofs,
+     * and the callers allowed to see them.
+     */
+    public static final class Entry {
+        private final SpoofedSigningArtifacts artifacts;
+        private final SpoofVisibilityPolicy policy;
+        private final int visibilitySlot;
+
+        public Entry(SpoofedSigningArtifacts artifacts, SpoofVisibilityPolicy policy, int visibilitySlot) {
+            this.artifacts = artifacts;
+            this.policy = policy;
+            this.visibilitySlot = visibilitySlot;
+        }
+
+        public boolean isSpoofing() {
+            return artifacts != null;
+        }
+
+        /*
+         * @param callingUid The uid of the caller of the query.
+         * @return Whether the caller may see the fake signature.
+         */
+        public boolean isVisibleTo(int callingUid) {
+            return policy.isVisible(callingUid, visibilitySlot);
+        }
+
+        public SpoofedSigningArtifacts getArtifacts() {
+            return artifacts;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package io.github.shomy.haruka;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Lightweight tracing of the Haruka hot paths, to explain the latency outliers counters can't.
+ *
+ * Spans are recorded into a preallocated ring buffer owned by the recording thread, so recording
+ * takes no locks and doesn't allocate. When a buffer is full, the oldest spans are overwritten.
+ * A span is recorded like this:
+ *
+ * long span = HarukaTrace.begin();
+ * ...
+ * HarukaTrace.end(HarukaTrace.SPOOF_SIGNATURE, span);
+ *
+ * When tracing is disabled, begin returns 0 and end returns right away, a single branch each.
+ *
+ * The spans can be written out as Chrome trace event JSON with export, which Perfetto
+ * (ui.perfetto.dev) and chrome://tracing can open. On a device, tracing is turned on at boot
+ * when the ENABLE_PROPERTY system property is set (see ReconcilePackageUtils and
+ * PackageManagerService.systemReady), and the trace is only written on request, by
+ * `dumpsys package haruka-trace` (see DumpHelper). The host benchmarks write the same format,
+ * see bench/.
+ */
+@DexAdd
+public final class HarukaTrace {
+    // Span names
+    public static final int GENERATE_PACKAGE_INFO = 0;
+    public static final int GENERATE_PACKAGE_INFO_ORIGINAL = 1;
+    public static final int GET_SPOOF_ENTRY = 2;
+    public static final int CREATE_SPOOF_ENTRY = 3;
+    public static final int IS_SPOOFING_PERMISSION_GRANTED = 4;
+    public static final int SPOOF_SIGNATURE = 5;
+    public static final int RECONCILE_PACKAGES = 6;
+    public static final int RECONCILE_PACKAGES_SPOOF = 7;
+    public static final int RECONCILE_PACKAGES_ORIGINAL = 8;
+    public static final int RECONCILE_PACKAGES_SHARED_USER_INDEX = 9;
+
+    private static final String[] NAMES = {
+            "generatePackageInfo",
+            "generatePackageInfo.original",
+            "getHarukaSpoofEntry",
+            "createSpoofEntry",
+            "isSpoofingPermissionGranted",
+            "spoofSignature",
+            "reconcilePackages",
+            "reconcilePackages.spoof",
+            "reconcilePackages.original",
+            "reconcilePackages.sharedUserIndex",
+    };
+
+    // System property toggling tracing on a device
+    public static final String ENABLE_PROPERTY = "persist.sys.haruka.trace";
+    // Argument of `dumpsys package` writing the trace on a device
+    public static final String DUMP_COMMAND = "haruka-trace";
+    // Where DUMP_COMMAND writes the trace on a device
+    public static final String DEFAULT_PATH = "/data/system/haruka/trace.json";
+
+    // Spans kept for each thread
+    private static final int BUFFER_SIZE = 4096;
+    // Buffers of dead threads kept until the spans are exported or cleared
+    private static final int MAX_DEAD_BUFFERS = 16;
+
+    private static volatile boolean enabled;
+    // Bumped by clear, buffers recorded in an older epoch count as empty
+    private static volatile int epoch;
+
+    private HarukaTrace() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /*
+     * Starts a span.
+     *
+     * @return The start of the span, to be passed to end, or 0 if tracing is disabled.
+     */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /*
+     * Ends a span and records it.
+     *
+     * @param name The name of the span, one of the constants of this class.
+     * @param start What begin returned when the span started.
+     */
+    public static void end(int name, long start) {
+        if (start == 0)
+            return;
+
+        Buffers.CURRENT.get().record(name, start, System.nanoTime() - start);
+    }
+
+    /*
+     * Drops every span recorded so far. Spans being recorded meanwhile might survive.
+     *
+     * Buffers are only ever written by their thread, so this doesn't touch them: it starts a new
+     * epoch, and each thread empties its own buffer the next time it records a span.
+     */
+    public static void clear() {
+        synchronized (Buffers.ALL) {
+            epoch++;
+            Buffers.dropDead(0);
+        }
+    }
+
+    /*
+     * Writes the recorded spans as Chrome trace event JSON, as complete ("X") events with
+     * timestamps in microseconds, along with the names of the threads.
+     *
+     * Threads keep recording while this runs, so the spans a thread records meanwhile
+     * might be left out, or overwrite some of the exported ones.
+     * The buffers of the threads that died are dropped once written.
+     *
+     * @param out Where to write the trace to.
+     * @param pid The process id to put in the events.
+     * @return The number of spans written.
+     */
+    public static int export(Writer out, int pid) throws IOException {
+        ArrayList<Buffer> buffers;
+        int current;
+        synchronized (Buffers.ALL) {
+            current = epoch;
+            buffers = new ArrayList<>(Buffers.ALL);
+        }
+
+        int spans = 0;
+        boolean first = true;
+        out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+        for (Buffer buffer : buffers) {
+            // count first, so the epoch it was recorded in is visible
+            long count = buffer.count;
+            if (count == 0 || buffer.epoch != current)
+                continue;
+
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + buffer.threadId
+                    + ",\"args\":{\"name\":\"" + escape(buffer.threadName) + "\"}}");
+
+            for (long i = Math.max(0, count - BUFFER_SIZE); i < count; i++) {
+                int slot = (int) (i % BUFFER_SIZE);
+                out.write(",\n{\"name\":\"" + NAMES[buffer.names[slot]] + "\",\"cat\":\"haruka\",\"ph\":\"X\",\"ts\":"
+                        + micros(buffer.starts[slot]) + ",\"dur\":" + micros(buffer.durations[slot])
+                        + ",\"pid\":" + pid + ",\"tid\":" + buffer.threadId + "}");
+                spans++;
+            }
+        }
+        out.write("\n]}\n");
+        out.flush();
+
+        synchronized (Buffers.ALL) {
+            for (Buffer buffer : buffers) {
+                if (!buffer.thread.isAlive())
+                    Buffers.ALL.remove(buffer);
+            }
+        }
+        return spans;
+    }
+
+    /*
+     * Writes the recorded spans to a file, see export(Writer, int).
+     *
+     * @param file The file to write, replaced if it exists.
+     * @param pid The process id to put in the events.
+     * @return The number of spans written.
+     */
+    public static int export(File file, int pid) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create " + parent);
+
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            return export(out, pid);
+        }
+    }
+
+    private static String micros(long nanos) {
+        return (nanos / 1000) + "." + String.format("%03d", nanos % 1000);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /*
+     * Holder of the buffers, so they're only set up once a span is recorded (or exported).
+     * HarukaTrace itself is loaded on the boot path (see ReconcilePackageUtils), where tracing
+     * is usually disabled.
+     *
+     * The buffer of a thread outlives it, so its spans can still be exported, but only until they
+     * are exported or cleared. Threads come and go for the life of system_server (the common pool
+     * workers for one), so at most MAX_DEAD_BUFFERS are kept meanwhile, the oldest are dropped first.
+     */
+    private static final class Buffers {
+        // Buffers of every thread that recorded a span, oldest first, guarded by ALL
+        static final ArrayList<Buffer> ALL = new ArrayList<>();
+        static final ThreadLocal<Buffer> CURRENT = new ThreadLocal<Buffer>() {
+            @Override
+            protected Buffer initialValue() {
+                Buffer buffer = new Buffer(Thread.currentThread());
+                synchronized (ALL) {
+                    dropDead(MAX_DEAD_BUFFERS);
+                    ALL.add(buffer);
+                }
+                return buffer;
+            }
+        };
+
+        /*
+         * Drops the oldest buffers of dead threads, keeping at most the given number of them.
+         * Must hold ALL.
+         */
+        static void dropDead(int keep) {
+            int dead = 0;
+            for (Buffer buffer : ALL) {
+                if (!buffer.thread.isAlive())
+                    dead++;
+            }
+            for (Iterator<Buffer> it = ALL.iterator(); dead > keep && it.hasNext();) {
+                if (!it.next().thread.isAlive()) {
+                    it.remove();
+                    dead--;
+                }
+            }
+        }
+    }
+
+    /*
+     * Spans of a single thread. Only the owning thread writes it, count is volatile
+     * so the exporter sees complete spans, and the epoch written before it.
+     */
+    private static final class Buffer {
+        final Thread thread;
+        final long threadId;
+        final String threadName;
+        final int[] names = new int[BUFFER_SIZE];
+        final long[] starts = new long[BUFFER_SIZE];
+        final long[] durations = new long[BUFFER_SIZE];
+        volatile long count;
+        // Epoch the spans were recorded in, the spans of an older one were cleared
+        int epoch;
+
+        Buffer(Thread thread) {
+            this.thread = thread;
+            threadId = thread.getId();
+            threadName = thread.getName();
+        }
+
+        void record(int name, long start, long duration) {
+            int current = HarukaTrace.epoch;
+            long index = epoch == current ? count : 0;
+            epoch = current;
+            int slot = (int) (index % BUFFER_SIZE);
+            names[slot] = name;
+            starts[slot] = start;
+            durations[slot] = duration;
+            count = index + 1;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io.github.shomy.haruka;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Bundle;
+import android.util.Log;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Background warm-up of the spoof state, started once PMS is ready (see
+ * PackageManagerService.systemReady).
+ *
+ * Without it, the first query for each spoofing package after boot pays for loading the
+ * Haruka classes, opening the profile store, decoding the fake signature and building
+ * the signing artifacts. Here we do all of that ahead of time, on low priority threads:
+ * the profiles and artifacts end up in SpoofRegistry, where queries find them.
+ *
+ * Queries never wait for the warm-up. Until it's done they just take the usual path,
+ * and if both build the same artifacts, one of them is thrown away.
+ */
+@DexAdd
+public final class HarukaWarmup {
+    // At most this many workers, the warm-up must not compete with the rest of the boot
+    private static final int MAX_WORKERS = 4;
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static volatile boolean done;
+
+    private HarukaWarmup() {
+    }
+
+    /*
+     * Starts the warm-up in the background, and returns immediately. Only the first call does anything.
+     *
+     * @param source Where the packages to warm up come from, read on the background thread.
+     * @param bridge The bridge to build the signing artifacts with.
+     */
+    public static void start(Source source, SdkBridge bridge) {
+        if (!started.compareAndSet(false, true))
+            return;
+
+        Thread thread = new Thread(new Coordinator(source, bridge), "HarukaWarmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /*
+     * @return Whether the warm-up is over.
+     */
+    public static boolean isDone() {
+        return done;
+    }
+
+    /*
+     * Body of the background thread. Spreads the packages over a small pool of workers and
+     * waits for them to finish.
+     */
+    private static void run(Source source, SdkBridge bridge) {
+        long start = System.nanoTime();
+        try {
+            initializeClasses();
+
+            List<Target> targets = source.collect();
+            if (targets.isEmpty())
+                return;
+
+            int workers = Math.min(targets.size(),
+                    Math.min(MAX_WORKERS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+            ExecutorService pool = Executors.newFixedThreadPool(workers, new WorkerFactory());
+            for (Target target : targets) {
+                pool.execute(new Task(target, bridge));
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Whatever went wrong, queries will do the work themselves. Never let it reach
+            // the uncaught exception handler, which would bring down system_server.
+            Log.w(Haruka.TAG, "Spoof state warm-up failed", e);
+        } finally {
+            HarukaMetrics.WARMUP_LATENCY.record(System.nanoTime() - start);
+            done = true;
+        }
+    }
+
+    /*
+     * Loads and initializes the classes of the query path, along with their static state.
+     */
+    private static void initializeClasses() {
+        HarukaSpoofCache.NOT_SPOOFING.isSpoofing();
+        SpoofRegistry.INSTANCE.snapshot();
+        SpoofProfileStore.Default.get();
+    }
+
+    /*
+     * Computes the profile and the signing artifacts of a package, as a query would, and
+     * registers them.
+     */
+    private static void warmUp(Target target, SdkBridge bridge) {
+        SpoofProfile profile = SpoofProfile.lookup(target.packageName, target.versionCode,
+                target.lastUpdateTime, target.metaData);
+        // Don't replace a profile registered by a commit in the meantime
+        SpoofRegistry.INSTANCE.putProfileIfAbsent(profile);
+
+        if (profile.canSpoof()) {
+            SpoofedSigningArtifacts artifacts = SpoofedSigningArtifacts.obtain(profile, target.lastUpdateTime,
+                    bridge);
+            if (artifacts != null) {
+                artifacts.getSigningInfo();
+            }
+        }
+        HarukaMetrics.WARMUP_PACKAGES.increment();
+    }
+
+    /*
+     * Provides the packages to warm up, that is the ones requesting FAKE_PACKAGE_SIGNATURE.
+     * Implemented by the SDK specific code, which knows how to read the PMS state.
+     */
+    public interface Source {
+        List<Target> collect();
+    }
+
+    /*
+     * A package to warm up.
+     */
+    public static final class Target {
+        final String packageName;
+        final long versionCode;
+        final long lastUpdateTime;
+        final Bundle metaData;
+
+        public Target(String packageName, long versionCode, long lastUpdateTime, Bundle metaData) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.metaData = metaData;
+        }
+    }
+
+    /*
+     * Runnables of the warm-up. Not lambdas, as our dex toolchain can't desugar them.
+     */
+    private static final class Coordinator implements Runnable {
+        private final Source source;
+        private final SdkBridge bridge;
+
+        Coordinator(Source source, SdkBridge bridge) {
+            this.source = source;
+            this.bridge = bridge;
+        }
+
+        @Override
+        public void run() {
+            HarukaWarmup.run(source, bridge);
+        }
+    }
+
+    private static final class Task implements Runnable {
+        private final Target target;
+        private final SdkBridge bridge;
+
+        Task(Target target, SdkBridge bridge) {
+            this.target = target;
+            this.bridge = bridge;
+        }
+
+        @Override
+        public void run() {
+            try {
+                warmUp(target, bridge);
+            } catch (RuntimeException e) {
+                Log.w(Haruka.TAG, "Spoof state warm-up failed for package " + target.packageName, e);
+            }
+        }
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HarukaWarmup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
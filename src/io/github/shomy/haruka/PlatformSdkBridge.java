@@ -0,0 +1,46 @@
+package io.github.shomy.haruka;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.content.pm.SigningDetails;
+import android.content.pm.SigningInfo;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * SdkBridge of Android 14 and 15 (SDK 34 and 35), whose classes it uses are the same.
+ * An SDK where they diverge gets its own copy in src/sdkN/io/github/shomy/haruka,
+ * which the build then picks instead of this one.
+ */
+@DexAdd
+public final class PlatformSdkBridge implements SdkBridge {
+    public static final PlatformSdkBridge INSTANCE = new PlatformSdkBridge();
+
+    private PlatformSdkBridge() {
+    }
+
+    @Override
+    public Object newSignature(byte[] signature) {
+        return new Signature(signature);
+    }
+
+    @Override
+    public Object[] newSignatureArray(Object signature) {
+        return new Signature[] { (Signature) signature };
+    }
+
+    @Override
+    public Object newSigningInfo(Object[] signatures) {
+        return new SigningInfo(new SigningDetails((Signature[]) signatures,
+                SigningDetails.SignatureSchemeVersion.SIGNING_BLOCK_V3));
+    }
+
+    @Override
+    public void setSignatures(PackageInfo pi, Object[] signatures) {
+        pi.signatures = (Signature[]) signatures;
+    }
+
+    @Override
+    public void setSigningInfo(PackageInfo pi, Object signingInfo) {
+        pi.signingInfo = (SigningInfo) signingInfo;
+    }
+}
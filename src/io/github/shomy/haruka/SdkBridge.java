@@ -0,0 +1,44 @@
+package io.github.shomy.haruka;
+
+import android.content.pm.PackageInfo;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Typed access to the SDK classes used to spoof a signature.
+ * 
+ * Signature, SigningDetails and SigningInfo (and the PackageInfo fields holding them) can change
+ * between Android versions, so every supported SDK has its own implementation under
+ * src/sdk$N/io/github/shomy/haruka/PlatformSdkBridge.java, compiled against that SDK.
+ * This keeps the core SDK agnostic without going through reflection on the hot path.
+ * 
+ * The SDK objects are passed around as Object, as the core never looks into them.
+ */
+@DexAdd
+public interface SdkBridge {
+    /*
+     * @param signature The decoded signature.
+     * @return A new Signature.
+     */
+    Object newSignature(byte[] signature);
+
+    /*
+     * @return A new Signature[] holding only the given signature.
+     */
+    Object[] newSignatureArray(Object signature);
+
+    /*
+     * @param signatures The Signature[] the package is signed with.
+     * @return A new SigningInfo, backed by a v3 SigningDetails of the given signatures.
+     */
+    Object newSigningInfo(Object[] signatures);
+
+    /*
+     * Sets PackageInfo.signatures.
+     */
+    void setSignatures(PackageInfo pi, Object[] signatures);
+
+    /*
+     * Sets PackageInfo.signingInfo.
+     */
+    void setSigningInfo(PackageInfo pi, Object signingInfo);
+}
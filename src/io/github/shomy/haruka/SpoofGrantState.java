@@ -0,0 +1,148 @@
+package io.github.shomy.haruka;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Cache of the grant state of FAKE_PACKAGE_SIGNATURE, per user and app.
+ *
+ * The grant state only changes when the user toggles the permission, yet working it out means
+ * generating the permissions of the package and looking them up. So every user gets a bitmap
+ * indexed by app id, with two bits per app: whether the state is known, and whether the
+ * permission is granted. Once known, the grant check is a single bit test.
+ *
+ * The bitmaps are filled by queries, and thrown away whenever permissions may have changed
+ * (see PermissionManagerServiceImpl): the user gets a brand new empty bitmap, and queries fill
+ * that one. A query that read the grant state before the change holds the old bitmap, so
+ * whatever it fills is never seen again, and the change takes effect on the very next query.
+ *
+ * Only apps (app ids from FIRST_APPLICATION_UID to LAST_APPLICATION_UID) and the first MAX_USERS
+ * users to query are cached, everything else just takes the uncached path.
+ */
+@DexAdd
+public final class SpoofGrantState {
+    // Process.FIRST_APPLICATION_UID and Process.LAST_APPLICATION_UID
+    private static final int FIRST_APPLICATION_UID = 10000;
+    private static final int LAST_APPLICATION_UID = 19999;
+    // UserHandle.USER_ALL
+    public static final int USER_ALL = -1;
+    private static final int MAX_USERS = 8;
+    // Two bits per app, 32 apps per word
+    private static final int WORDS = (LAST_APPLICATION_UID - FIRST_APPLICATION_UID + 1 + 31) / 32;
+    private static final int NO_USER = -1;
+
+    // Results of get
+    public static final int UNKNOWN = -1;
+    public static final int DENIED = 0;
+    public static final int GRANTED = 1;
+
+    public static final SpoofGrantState INSTANCE = new SpoofGrantState();
+
+    // User of every slot, NO_USER if free. Slots are never given back, users are few.
+    private final AtomicIntegerArray users = new AtomicIntegerArray(MAX_USERS);
+    // Current bitmap of every slot, created on first use
+    private final AtomicReferenceArray<AtomicLongArray> bitmaps = new AtomicReferenceArray<>(MAX_USERS);
+
+    private SpoofGrantState() {
+        for (int i = 0; i < MAX_USERS; i++) {
+            users.set(i, NO_USER);
+        }
+    }
+
+    /*
+     * Returns the current bitmap of a user, to be passed to get and fill.
+     * Queries must get it before reading the grant state, so a change in between can't
+     * leave a stale state behind.
+     *
+     * @param userId The user.
+     * @return The bitmap of the user, or null if the user isn't cached.
+     */
+    public AtomicLongArray bitmapOf(int userId) {
+        if (userId < 0)
+            return null;
+
+        int slot = slotOf(userId);
+        if (slot < 0)
+            return null;
+
+        AtomicLongArray bitmap = bitmaps.get(slot);
+        if (bitmap == null) {
+            bitmaps.compareAndSet(slot, null, new AtomicLongArray(WORDS));
+            bitmap = bitmaps.get(slot);
+        }
+        return bitmap;
+    }
+
+    /*
+     * @param bitmap The bitmap of the user, can be null.
+     * @param appId The app id of the package.
+     * @return GRANTED or DENIED if the grant state of the package is known, UNKNOWN otherwise.
+     */
+    public static int get(AtomicLongArray bitmap, int appId) {
+        if (bitmap == null || appId < FIRST_APPLICATION_UID || appId > LAST_APPLICATION_UID)
+            return UNKNOWN;
+
+        int index = appId - FIRST_APPLICATION_UID;
+        long bits = bitmap.get(index >>> 5) >>> ((index & 31) << 1);
+        if ((bits & 1) == 0)
+            return UNKNOWN;
+        return (bits & 2) != 0 ? GRANTED : DENIED;
+    }
+
+    /*
+     * Records the grant state of a package, as read by a query.
+     *
+     * @param bitmap The bitmap of the user, as returned by bitmapOf before reading the state.
+     * @param appId The app id of the package.
+     * @param granted Whether FAKE_PACKAGE_SIGNATURE is granted.
+     */
+    public static void fill(AtomicLongArray bitmap, int appId, boolean granted) {
+        if (bitmap == null || appId < FIRST_APPLICATION_UID || appId > LAST_APPLICATION_UID)
+            return;
+
+        int index = appId - FIRST_APPLICATION_UID;
+        int word = index >>> 5;
+        int shift = (index & 31) << 1;
+        long value = (granted ? 3L : 1L) << shift;
+        while (true) {
+            long bits = bitmap.get(word);
+            long updated = (bits & ~(3L << shift)) | value;
+            if (bits == updated || bitmap.compareAndSet(word, bits, updated))
+                return;
+        }
+    }
+
+    /*
+     * Forgets the grant states of a user, once its permissions may have changed.
+     *
+     * @param userId The user, or USER_ALL.
+     */
+    public void invalidate(int userId) {
+        for (int slot = 0; slot < MAX_USERS; slot++) {
+            int user = users.get(slot);
+            if (user != NO_USER && (userId == USER_ALL || user == userId)) {
+                bitmaps.set(slot, null);
+            }
+        }
+        HarukaMetrics.GRANT_STATE_INVALIDATIONS.increment();
+    }
+
+    // Slot of the user, claiming a free one if needed. -1 if there are none left.
+    private int slotOf(int userId) {
+        for (int slot = 0; slot < MAX_USERS; slot++) {
+            int user = users.get(slot);
+            if (user == userId)
+                return slot;
+            if (user == NO_USER) {
+                if (users.compareAndSet(slot, NO_USER, userId))
+                    return slot;
+                if (users.get(slot) == userId)
+                    return slot;
+            }
+        }
+        return -1;
+    }
+}
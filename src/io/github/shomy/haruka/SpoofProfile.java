@@ -0,0 +1,220 @@
+package io.github.shomy.haruka;
+
+import java.util.Arrays;
+
+import android.os.Bundle;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * What Haruka needs to know about a package version to spoof its signature, extracted once
+ * from its manifest: whether it requests FAKE_PACKAGE_SIGNATURE, its validated and decoded
+ * `fake-signature` metadata, and who may see it (see SpoofVisibilityPolicy).
+ * 
+ * Profiles are built when a scanned or installed package is committed to PMS (see SpoofScan) and
+ * registered in SpoofRegistry, so queries never have to unparcel the metadata Bundle. A profile
+ * is keyed by the version code and the last update time of the package, so the one of a failed
+ * or later replaced install is never used for another install of the package, even of the same
+ * version. Queries for a package version without a registered profile build theirs instead,
+ * see lookup.
+ */
+@DexAdd
+public final class SpoofProfile {
+    private final String packageName;
+    private final long versionCode;
+    private final long lastUpdateTime;
+    private final boolean declaresPermission;
+    // Decoded fake signature, null if the metadata is missing or invalid
+    private final byte[] signature;
+    // Packages allowed to see the fake signature, null if everyone is
+    private final String[] visibleTo;
+
+    private SpoofProfile(String packageName, long versionCode, long lastUpdateTime, boolean declaresPermission,
+            byte[] signature, String[] visibleTo) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.lastUpdateTime = lastUpdateTime;
+        this.declaresPermission = declaresPermission;
+        this.signature = signature;
+        this.visibleTo = visibleTo;
+    }
+
+    /*
+     * Builds the profile of a package version, reading its metadata only if it requests
+     * FAKE_PACKAGE_SIGNATURE.
+     * 
+     * @param packageName The name of the package.
+     * @param versionCode The version code of the package.
+     * @param lastUpdateTime The last update time of the package.
+     * @param declaresPermission Whether the package requests FAKE_PACKAGE_SIGNATURE in its manifest.
+     * @param metaData The metadata of the package, can be null.
+     */
+    public static SpoofProfile create(String packageName, long versionCode, long lastUpdateTime,
+            boolean declaresPermission, Bundle metaData) {
+        HarukaMetrics.SPOOF_PROFILE_CREATE_CALLS.increment();
+
+        // We don't log anything for packages without the permission, to avoid spamming
+        // the logs for every package
+        if (!declaresPermission)
+            return new SpoofProfile(packageName, versionCode, lastUpdateTime, false, null, null);
+
+        // Just to make people life easier while debugging, we log eventual missing stuff
+        if (metaData == null) {
+            // Small check to avoid spamming with NanoDroid org.spoofing apk
+            if (!packageName.equals(HarukaSignatureSpoofingCore.NANODROID_SPOOFING)
+                    && !packageName.equals(HarukaSignatureSpoofingCore.HARUKA_SPOOFING)) {
+                HarukaLog.log(HarukaLog.METADATA_MISSING, packageName);
+            }
+            return new SpoofProfile(packageName, versionCode, lastUpdateTime, true, null, null);
+        }
+
+        // Bundle.getString returns null for non String values too
+        String fakeSignature = metaData.getString(HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE);
+        if (fakeSignature == null) {
+            HarukaLog.log(HarukaLog.METADATA_INVALID, packageName);
+            return new SpoofProfile(packageName, versionCode, lastUpdateTime, true, null, null);
+        }
+
+        byte[] signature = decodeSignature(fakeSignature);
+        if (signature == null) {
+            HarukaLog.log(HarukaLog.SIGNATURE_INVALID, packageName);
+        }
+        String[] visibleTo = parseVisibleTo(
+                metaData.getString(HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE_VISIBLE_TO));
+        return new SpoofProfile(packageName, versionCode, lastUpdateTime, true, signature, visibleTo);
+    }
+
+    /*
+     * Returns the profile of an installed package version, for queries.
+     * 
+     * The profile registered at commit time is used if it's for this very install of the package,
+     * that is the same version code and last update time. Otherwise, the signature
+     * is taken from SpoofProfileStore if it was already decoded (e.g. before a reboot), and only
+     * as a last resort the metadata is read, the result being saved in the store. The store only
+     * keeps signatures, so profiles restricting who sees them are never saved there.
+     * 
+     * @param packageName The name of the package, which must request FAKE_PACKAGE_SIGNATURE.
+     * @param versionCode The version code of the package.
+     * @param lastUpdateTime The last update time of the package.
+     * @param metaData The metadata of the package, only read if there's no other choice.
+     */
+    public static SpoofProfile lookup(String packageName, long versionCode, long lastUpdateTime, Bundle metaData) {
+        SpoofProfile profile = SpoofRegistry.INSTANCE.getProfile(packageName);
+        if (profile != null && profile.matches(versionCode, lastUpdateTime))
+            return profile;
+
+        SpoofProfileStore store = SpoofProfileStore.Default.get();
+        byte[] signature = store.findSignature(packageName, versionCode, lastUpdateTime);
+        if (signature != null) {
+            HarukaMetrics.PROFILE_STORE_HITS.increment();
+            return new SpoofProfile(packageName, versionCode, lastUpdateTime, true, signature, null);
+        }
+
+        profile = create(packageName, versionCode, lastUpdateTime, true, metaData);
+        if (profile.signature != null && profile.visibleTo == null) {
+            store.put(packageName, versionCode, lastUpdateTime, profile.signature);
+        }
+        return profile;
+    }
+
+    /*
+     * Parses the comma separated list of packages of the `fake-signature-visible-to` metadata.
+     * 
+     * @return The names of the packages, or null if the metadata is missing.
+     */
+    private static String[] parseVisibleTo(String value) {
+        if (value == null)
+            return null;
+
+        String[] names = value.split(",");
+        int count = 0;
+        for (String name : names) {
+            name = name.trim();
+            if (!name.isEmpty())
+                names[count++] = name;
+        }
+        return Arrays.copyOf(names, count);
+    }
+
+    /*
+     * Decodes the hex encoded signature, the same way Signature(String) does.
+     * Only ASCII hex digits are accepted, unlike Character.digit which takes any Unicode digit.
+     * 
+     * @return The decoded signature, or null if it's empty or not valid hex.
+     */
+    private static byte[] decodeSignature(String signature) {
+        if (signature.isEmpty() || signature.length() % 2 != 0)
+            return null;
+
+        byte[] bytes = new byte[signature.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = hexDigit(signature.charAt(i * 2));
+            int low = hexDigit(signature.charAt(i * 2 + 1));
+            if (high < 0 || low < 0)
+                return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    // Value of a [0-9a-fA-F] character, -1 for anything else
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /*
+     * @return Whether the package requests FAKE_PACKAGE_SIGNATURE and has a valid fake signature.
+     */
+    public boolean canSpoof() {
+        return declaresPermission && signature != null;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public long getVersionCode() {
+        return versionCode;
+    }
+
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    /*
+     * @return Whether this is the profile of the given install of the package.
+     */
+    public boolean matches(long versionCode, long lastUpdateTime) {
+        return this.versionCode == versionCode && this.lastUpdateTime == lastUpdateTime;
+    }
+
+    public boolean declaresPermission() {
+        return declaresPermission;
+    }
+
+    /*
+     * @return A copy of the decoded fake signature, or null if there's none.
+     */
+    public byte[] getSignature() {
+        return signature != null ? signature.clone() : null;
+    }
+
+    /*
+     * @return Whether only some callers may see the fake signature, see getVisibleTo.
+     */
+    public boolean isRestricted() {
+        return visibleTo != null;
+    }
+
+    /*
+     * @return A copy of the names of the packages allowed to see the fake signature, or null if everyone is.
+     */
+    public String[] getVisibleTo() {
+        return visibleTo != null ? visibleTo.clone() : null;
+    }
+}
@@ -0,0 +1,376 @@
+package io.github.shomy.haruka;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Persistent store of the decoded fake signatures of spoofing packages, so they don't have
+ * to be parsed again from the package metadata after every reboot.
+ * 
+ * The file is memory mapped and indexed once when opened: after that, a lookup is a map
+ * lookup plus a read of the mapped record. Records are keyed by package name, version code
+ * and last update time. The record of an updated or reinstalled package is evicted when it's
+ * found stale, and the one of a package that's gone when it leaves SpoofRegistry. Changes are
+ * kept pending until the file is rewritten with only the live records, then mapped again.
+ * 
+ * Only what derives from the package itself is stored. The FAKE_PACKAGE_SIGNATURE grant is
+ * owned by the permission manager, and a persisted copy could outlive a revoke.
+ * 
+ * File layout (big endian):
+ *   header:  magic (int), format version (int), record count (int), body length (int), body CRC32 (long)
+ *   body:    record count times:
+ *            name length (short), name (UTF-8), version code (long), last update time (long),
+ *            signature length (int), signature
+ * A file with a different magic or version, a wrong checksum, or records overflowing the body
+ * is ignored as a whole.
+ */
+@DexAdd
+public final class SpoofProfileStore {
+    public static final String DEFAULT_PATH = "/data/system/haruka/spoof_profiles.bin";
+
+    private static final int MAGIC = 0x48524b50; // "HRKP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    // Records are written this long after the last change, so changes during boot are batched
+    private static final long WRITE_DELAY_MILLIS = 10_000;
+    // Pending in place of the record of a removed package
+    private static final Record REMOVED = new Record(null, 0, 0, null);
+
+    private final File file;
+    // The file as last mapped, replaced once pending changes are written
+    private volatile Mapping mapping;
+    // Records added or removed (REMOVED) since the file was mapped, until they're written
+    private final ConcurrentHashMap<String, Record> pending = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private Thread writer;
+
+    private SpoofProfileStore(File file, Mapping mapping) {
+        this.file = file;
+        this.mapping = mapping;
+    }
+
+    /*
+     * A mapped file and the offsets of its records, keyed by package name. Never changes.
+     */
+    private static final class Mapping {
+        static final Mapping EMPTY = new Mapping(null, new HashMap<String, Integer>());
+
+        final ByteBuffer mapped;
+        final Map<String, Integer> offsets;
+
+        Mapping(ByteBuffer mapped, Map<String, Integer> offsets) {
+            this.mapped = mapped;
+            this.offsets = offsets;
+        }
+    }
+
+    /*
+     * Opens the store at the given path. A missing, outdated or corrupt file results in an
+     * empty store, which will overwrite it on the next write.
+     * 
+     * @param file The file of the store.
+     * @return The store, never null.
+     */
+    public static SpoofProfileStore open(File file) {
+        if (!file.isFile()) {
+            return new SpoofProfileStore(file, Mapping.EMPTY);
+        }
+
+        Mapping mapping = map(file);
+        if (mapping != null) {
+            return new SpoofProfileStore(file, mapping);
+        }
+
+        HarukaMetrics.PROFILE_STORE_REJECTED.increment();
+        return new SpoofProfileStore(file, Mapping.EMPTY);
+    }
+
+    /*
+     * @return The mapping of the file, or null if it can't be read or is invalid.
+     */
+    private static Mapping map(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Map<String, Integer> offsets = index(buffer);
+            return offsets != null ? new Mapping(buffer, offsets) : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Validates the header and checksum of the file, and indexes its records.
+     * 
+     * @return The offset of every record, keyed by package name, or null if the file is invalid.
+     */
+    private static Map<String, Integer> index(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE)
+            return null;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+            return null;
+
+        int count = buffer.getInt(8);
+        int bodyLength = buffer.getInt(12);
+        long checksum = buffer.getLong(16);
+        if (count < 0 || bodyLength < 0 || bodyLength != buffer.limit() - HEADER_SIZE)
+            return null;
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != checksum)
+            return null;
+
+        Map<String, Integer> offsets = new HashMap<>(count * 2);
+        int position = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int nameLength = buffer.getShort(position) & 0xffff;
+            int signatureOffset = position + 2 + nameLength + 8 + 8;
+            if (signatureOffset + 4 > buffer.limit())
+                return null;
+
+            int signatureLength = buffer.getInt(signatureOffset);
+            int end = signatureOffset + 4 + signatureLength;
+            if (signatureLength < 0 || end > buffer.limit() || end < 0)
+                return null;
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(position + 2);
+            nameBuffer.get(name);
+            offsets.put(new String(name, StandardCharsets.UTF_8), position);
+            position = end;
+        }
+
+        return position == buffer.limit() ? offsets : null;
+    }
+
+    /*
+     * Returns the decoded fake signature of the given package version, if stored.
+     * 
+     * @param packageName The name of the package.
+     * @param versionCode The version code of the package.
+     * @param lastUpdateTime The last update time of the package.
+     * @return The signature bytes, or null if not stored or stored for another version.
+     */
+    public byte[] findSignature(String packageName, long versionCode, long lastUpdateTime) {
+        // Read before the mapping: once written, a pending record is only dropped after the new mapping is there
+        Record record = pending.get(packageName);
+        if (record != null) {
+            return record != REMOVED && record.matches(versionCode, lastUpdateTime) ? record.signature.clone() : null;
+        }
+
+        Mapping mapping = this.mapping;
+        Integer offset = mapping.offsets.get(packageName);
+        if (offset == null)
+            return null;
+
+        ByteBuffer mapped = mapping.mapped;
+        int position = offset + 2 + (mapped.getShort(offset) & 0xffff);
+        if (mapped.getLong(position) != versionCode || mapped.getLong(position + 8) != lastUpdateTime) {
+            HarukaMetrics.PROFILE_STORE_STALE.increment();
+            // Evicted, unless the record of the new version was put meanwhile
+            if (pending.putIfAbsent(packageName, REMOVED) == null)
+                scheduleWrite();
+            return null;
+        }
+
+        byte[] signature = new byte[mapped.getInt(position + 16)];
+        ByteBuffer source = mapped.duplicate();
+        source.position(position + 20);
+        source.get(signature);
+        return signature;
+    }
+
+    /*
+     * Stores the decoded fake signature of a package version, replacing any previous one.
+     * The file is written in the background a few seconds later, batching other changes.
+     * 
+     * @param packageName The name of the package.
+     * @param versionCode The version code of the package.
+     * @param lastUpdateTime The last update time of the package.
+     * @param signature The decoded signature.
+     */
+    public void put(String packageName, long versionCode, long lastUpdateTime, byte[] signature) {
+        pending.put(packageName, new Record(packageName, versionCode, lastUpdateTime, signature.clone()));
+        scheduleWrite();
+    }
+
+    /*
+     * Evicts the record of a package, if there's one, for example when it's uninstalled.
+     * 
+     * @param packageName The name of the package.
+     */
+    public void remove(String packageName) {
+        if (!pending.containsKey(packageName) && !mapping.offsets.containsKey(packageName))
+            return;
+
+        pending.put(packageName, REMOVED);
+        scheduleWrite();
+    }
+
+    /*
+     * Starts the background writer, unless it's already waiting to write.
+     */
+    private void scheduleWrite() {
+        synchronized (writeLock) {
+            if (writer != null)
+                return;
+
+            writer = new Thread(new Writer(), "HarukaProfileStore");
+            writer.setDaemon(true);
+            writer.setPriority(Thread.MIN_PRIORITY);
+            writer.start();
+        }
+    }
+
+    /*
+     * Writes every live record (mapped and pending, without the removed ones) to a temporary file,
+     * then atomically renames it over the store file. Readers keep using the current mapping, which
+     * points to the old file, until the new one is mapped. Then the written changes stop being pending.
+     */
+    public synchronized void write() throws IOException {
+        Mapping mapping = this.mapping;
+        Map<String, Record> written = new HashMap<>(pending);
+        List<Record> records = new ArrayList<>();
+        for (String name : mapping.offsets.keySet()) {
+            if (!written.containsKey(name)) {
+                records.add(readMapped(mapping, name));
+            }
+        }
+        for (Record record : written.values()) {
+            if (record != REMOVED) {
+                records.add(record);
+            }
+        }
+
+        int bodyLength = 0;
+        List<byte[]> names = new ArrayList<>(records.size());
+        for (Record record : records) {
+            byte[] name = record.packageName.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            bodyLength += 2 + name.length + 8 + 8 + 4 + record.signature.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            buffer.putShort((short) names.get(i).length);
+            buffer.put(names.get(i));
+            buffer.putLong(record.versionCode);
+            buffer.putLong(record.lastUpdateTime);
+            buffer.putInt(record.signature.length);
+            buffer.put(record.signature);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, bodyLength);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, records.size());
+        buffer.putInt(12, bodyLength);
+        buffer.putLong(16, crc.getValue());
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create " + parent);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot rename " + temp + " to " + file);
+
+        Mapping remapped = map(file);
+        if (remapped == null)
+            throw new IOException("Cannot map " + file);
+        this.mapping = remapped;
+        // Only the records that weren't changed again meanwhile
+        for (Map.Entry<String, Record> entry : written.entrySet()) {
+            pending.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /*
+     * Runnable of the background writer, which batches the pending records into a single write.
+     */
+    private final class Writer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(WRITE_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                // Write right away
+            }
+            synchronized (writeLock) {
+                writer = null;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                HarukaMetrics.PROFILE_STORE_WRITE_FAILURES.increment();
+            }
+        }
+    }
+
+    private static Record readMapped(Mapping mapping, String packageName) {
+        ByteBuffer mapped = mapping.mapped;
+        int offset = mapping.offsets.get(packageName);
+        int position = offset + 2 + (mapped.getShort(offset) & 0xffff);
+        byte[] signature = new byte[mapped.getInt(position + 16)];
+        ByteBuffer source = mapped.duplicate();
+        source.position(position + 20);
+        source.get(signature);
+        return new Record(packageName, mapped.getLong(position), mapped.getLong(position + 8), signature);
+    }
+
+    private static final class Record {
+        final String packageName;
+        final long versionCode;
+        final long lastUpdateTime;
+        final byte[] signature;
+
+        Record(String packageName, long versionCode, long lastUpdateTime, byte[] signature) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.signature = signature;
+        }
+
+        boolean matches(long versionCode, long lastUpdateTime) {
+            return this.versionCode == versionCode && this.lastUpdateTime == lastUpdateTime;
+        }
+    }
+
+    /*
+     * Holder of the store used by the spoofing path, opened on first use.
+     */
+    public static final class Default {
+        private static final SpoofProfileStore INSTANCE = open(new File(DEFAULT_PATH));
+
+        private Default() {
+        }
+
+        public static SpoofProfileStore get() {
+            return INSTANCE;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.shomy.haruka;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.content.pm.PackageInfo;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * What generatePackageInfo does for a query asking for the signatures of a package,
+ * once its spoof entry is known (see ComputerEngine). The hook only looks up the entry and
+ * calls the original method, everything it decides in between is here, so the host checks
+ * under bench/ run the same code. A query goes like this:
+ *
+ * if (!SpoofQuery.appliesTo(entry, callingUid))                 -> original PackageInfo
+ * AtomicLongArray grants = SpoofGrantState.INSTANCE.bitmapOf(userId);
+ * int grant = SpoofQuery.grantStateOf(grants, appId);
+ * if (grant == SpoofGrantState.DENIED)                          -> original PackageInfo
+ * pi = <original>(SpoofQuery.generateFlags(grant, flags));
+ * return SpoofQuery.finish(pi, flags, grant, entry, grants, appId, start, span);
+ *
+ * Nothing of it allocates until the caller actually gets the fake signature.
+ */
+@DexAdd
+public final class SpoofQuery {
+    // PackageManager.GET_PERMISSIONS
+    private static final long GET_PERMISSIONS = 4096;
+
+    private SpoofQuery() {
+    }
+
+    /*
+     * Checks whether the fake signature of a package applies to a query: the package spoofs,
+     * and the caller is allowed to see its fake signature. Callers the package doesn't show it
+     * to get the real one, as if it didn't spoof at all.
+     *
+     * @param entry The spoof entry of the package.
+     * @param callingUid The uid of the caller of the query.
+     */
+    public static boolean appliesTo(HarukaSpoofCache.Entry entry, int callingUid) {
+        if (!entry.isSpoofing())
+            return false;
+
+        if (!entry.isVisibleTo(callingUid)) {
+            HarukaMetrics.GENERATE_PACKAGE_INFO_SPOOF_HIDDEN.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Reads the grant state of FAKE_PACKAGE_SIGNATURE, which once known is a bit test,
+     * see SpoofGrantState. The bitmap has to be taken before calling this, and the same one
+     * passed to finish.
+     *
+     * @return SpoofGrantState.GRANTED, DENIED or UNKNOWN.
+     */
+    public static int grantStateOf(AtomicLongArray grants, int appId) {
+        int grant = SpoofGrantState.get(grants, appId);
+        if (grant == SpoofGrantState.UNKNOWN) {
+            HarukaMetrics.GRANT_STATE_MISSES.increment();
+        } else {
+            HarukaMetrics.GRANT_STATE_HITS.increment();
+        }
+        if (grant != SpoofGrantState.DENIED)
+            HarukaMetrics.GENERATE_PACKAGE_INFO_SPOOF_PATH.increment();
+        return grant;
+    }
+
+    /*
+     * The grant state of FAKE_PACKAGE_SIGNATURE lives in the permission flags, so they're forced
+     * only for packages that can actually spoof, and only until the grant state is known.
+     *
+     * @return The flags to generate the PackageInfo with.
+     */
+    public static long generateFlags(int grant, long flags) {
+        return grant == SpoofGrantState.UNKNOWN ? flags | GET_PERMISSIONS : flags;
+    }
+
+    /*
+     * Spoofs the signature of a generated PackageInfo if the permission is granted, and gives
+     * the caller back only what it asked for.
+     *
+     * @param pi The PackageInfo generated with generateFlags, or null if there is none.
+     * @param flags The flags of the query.
+     * @param grant What grantStateOf returned, GRANTED or UNKNOWN.
+     * @param grants The bitmap passed to grantStateOf, filled in if the grant state was unknown.
+     * @param appId The app id of the package.
+     * @param start When the spoof path started (System.nanoTime), for the latency histogram.
+     * @param span The span of the spoof path, see HarukaTrace.begin.
+     * @return The PackageInfo to return, null if pi is.
+     */
+    public static PackageInfo finish(PackageInfo pi, long flags, int grant, HarukaSpoofCache.Entry entry,
+            AtomicLongArray grants, int appId, long start, long span) {
+        if (pi != null) {
+            pi = grant == SpoofGrantState.GRANTED ? spoof(pi, flags, entry)
+                    : checkAndSpoof(pi, flags, entry, grants, appId);
+        }
+
+        HarukaMetrics.GENERATE_PACKAGE_INFO_SPOOF_PATH_LATENCY.record(System.nanoTime() - start);
+        HarukaTrace.end(HarukaTrace.GENERATE_PACKAGE_INFO, span);
+        return pi;
+    }
+
+    private static PackageInfo spoof(PackageInfo pi, long flags, HarukaSpoofCache.Entry entry) {
+        HarukaMetrics.GENERATE_PACKAGE_INFO_SPOOFED.increment();
+        return HarukaSignatureSpoofingCore.spoofSignature(pi, flags, entry);
+    }
+
+    private static PackageInfo checkAndSpoof(PackageInfo pi, long flags, HarukaSpoofCache.Entry entry,
+            AtomicLongArray grants, int appId) {
+        HarukaPackageWrapper hp = new HarukaPackageWrapper(
+                pi.packageName,
+                pi.requestedPermissions,
+                pi.requestedPermissionsFlags,
+                flags);
+
+        boolean granted = HarukaSignatureSpoofingCore.isSpoofingPermissionGranted(hp);
+        SpoofGrantState.fill(grants, appId, granted);
+        if (granted) {
+            pi = spoof(pi, flags, entry);
+        }
+
+        /*
+         * NOTE: Why this code?
+         * This step is really important!
+         * Above, we used generatePackageInfo to force get the permissions from the
+         * package,
+         * since we check them in `isSpoofingPermissionGranted`.
+         * If we don't force them back, there might be an unexpected issue, such as an
+         * app
+         * verifying back the flags.
+         *
+         * This is taken from haystack, but it took me a while to figure out why it was
+         * there.
+         */
+        if ((flags & GET_PERMISSIONS) == 0) {
+            pi.permissions = null;
+            pi.requestedPermissions = null;
+            pi.requestedPermissionsFlags = null;
+        }
+        return pi;
+    }
+}
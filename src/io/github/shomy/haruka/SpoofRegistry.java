@@ -0,0 +1,345 @@
+package io.github.shomy.haruka;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Spoof state of every spoofing package, shared by all the binder threads querying PMS:
+ * the profiles registered at commit time, the signing artifacts built from them, and the
+ * visibility policy of the packages restricting who sees their fake signature.
+ * The packages with a profile are the only ones that may spoof, so queries for every other
+ * package stop at a lookup here.
+ * 
+ * The whole state is an immutable Snapshot published through a single AtomicReference: readers only do
+ * a volatile read and a lookup, without locks or retries, so they never slow each other down, and
+ * everything they read from a Snapshot was published together.
+ * Writers (a package being installed, updated, or found to be invalid) copy what they change,
+ * and publish a new Snapshot with a CAS, retrying if another writer got there first. Writes are
+ * rare (a handful of spoofing packages, once per version), so copying is cheap.
+ * 
+ * Profiles and artifacts are immutable, so a reader always sees a complete entry,
+ * either the old one or the new one.
+ * 
+ * The visibility policy needs the app ids of the restricted packages and of the callers they
+ * name, which may be committed in any order. So the app id of every committed package is kept
+ * aside, and the policy is rebuilt whenever a restricted profile, or the app id of a package it
+ * names, changes. Each Snapshot keeps the app ids its policy was built from, so writers can
+ * tell when it's outdated.
+ */
+@DexAdd
+public final class SpoofRegistry {
+    public static final SpoofRegistry INSTANCE = new SpoofRegistry();
+
+    private final AtomicReference<Snapshot> state = new AtomicReference<>(Snapshot.EMPTY);
+    // App id of every committed package, only read by writers
+    private final ConcurrentHashMap<String, Integer> appIds = new ConcurrentHashMap<>();
+
+    /*
+     * The state of the registry at some point in time. Never changes once published.
+     */
+    @DexAdd
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<String, SpoofProfile>emptyMap(),
+                Collections.<String, SpoofedSigningArtifacts>emptyMap(), Collections.<String, Integer>emptyMap(),
+                null);
+
+        final Map<String, SpoofProfile> profiles;
+        final Map<String, SpoofedSigningArtifacts> artifacts;
+        // App ids the policy was built from: the restricted packages and their callers, null if not installed
+        final Map<String, Integer> appIds;
+        // Null while no package is restricted, so SpoofVisibilityPolicy isn't loaded until one is
+        final SpoofVisibilityPolicy policy;
+
+        Snapshot(Map<String, SpoofProfile> profiles, Map<String, SpoofedSigningArtifacts> artifacts,
+                Map<String, Integer> appIds, SpoofVisibilityPolicy policy) {
+            this.profiles = profiles;
+            this.artifacts = artifacts;
+            this.appIds = appIds;
+            this.policy = policy;
+        }
+
+        /*
+         * Checks whether the package may spoof its signature, that is, whether it requested
+         * FAKE_PACKAGE_SIGNATURE when it was committed. Every other package is let through on this.
+         * 
+         * @param packageName The name of the package.
+         * @return false if the package can't spoof, true if it may.
+         */
+        public boolean mayBeSpoofing(String packageName) {
+            return !profiles.isEmpty() && profiles.containsKey(packageName);
+        }
+
+        /*
+         * @param packageName The name of the package.
+         * @return The profile of the package, or null if it wasn't registered.
+         */
+        public SpoofProfile getProfile(String packageName) {
+            return profiles.get(packageName);
+        }
+
+        /*
+         * @param packageName The name of the package.
+         * @return The artifacts of the package, or null if they weren't built.
+         */
+        public SpoofedSigningArtifacts get(String packageName) {
+            return artifacts.get(packageName);
+        }
+
+        /*
+         * @return An immutable view of the artifacts of every package.
+         */
+        public Map<String, SpoofedSigningArtifacts> getArtifacts() {
+            return artifacts;
+        }
+
+        /*
+         * @return Who sees the fake signature of the registered packages.
+         */
+        public SpoofVisibilityPolicy getVisibilityPolicy() {
+            return policy != null ? policy : SpoofVisibilityPolicy.UNRESTRICTED;
+        }
+    }
+
+    /*
+     * @return The current state of the registry, which later writes don't change.
+     */
+    public Snapshot snapshot() {
+        return state.get();
+    }
+
+    /*
+     * @param packageName The name of the package.
+     * @return The artifacts of the package, or null if it's not registered.
+     */
+    public SpoofedSigningArtifacts get(String packageName) {
+        return state.get().artifacts.get(packageName);
+    }
+
+    /*
+     * Registers the artifacts of a package, replacing the ones of any previous version.
+     */
+    public void put(SpoofedSigningArtifacts artifacts) {
+        String packageName = artifacts.getPackageName();
+        while (true) {
+            Snapshot current = state.get();
+            if (current.artifacts.get(packageName) == artifacts)
+                return;
+
+            Snapshot next = new Snapshot(current.profiles, with(current.artifacts, packageName, artifacts),
+                    current.appIds, current.policy);
+            if (state.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    /*
+     * Unregisters the artifacts of a package, for example when its fake signature turns out to be invalid.
+     */
+    public void remove(String packageName) {
+        while (true) {
+            Snapshot current = state.get();
+            if (!current.artifacts.containsKey(packageName))
+                return;
+
+            Snapshot next = new Snapshot(current.profiles, with(current.artifacts, packageName, null),
+                    current.appIds, current.policy);
+            if (state.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    /*
+     * @param packageName The name of the package.
+     * @return The profile of the package, or null if it wasn't registered.
+     */
+    public SpoofProfile getProfile(String packageName) {
+        return state.get().profiles.get(packageName);
+    }
+
+    /*
+     * Registers the profile of a package, replacing the one of any previous version.
+     */
+    public void putProfile(SpoofProfile profile) {
+        String packageName = profile.getPackageName();
+        while (true) {
+            Snapshot current = state.get();
+            SpoofProfile previous = current.profiles.get(packageName);
+            if (previous == profile)
+                return;
+
+            Snapshot next = withProfiles(current, with(current.profiles, packageName, profile), current.artifacts,
+                    isRestricted(previous) || profile.isRestricted());
+            if (state.compareAndSet(current, next))
+                break;
+        }
+        if (profile.isRestricted())
+            refreshPolicy();
+    }
+
+    /*
+     * Registers the profile of a package, unless one was registered in the meantime, for example
+     * by a commit racing with the warmup. Checked and done in the same write.
+     * 
+     * @return The profile now registered for the package.
+     */
+    public SpoofProfile putProfileIfAbsent(SpoofProfile profile) {
+        String packageName = profile.getPackageName();
+        while (true) {
+            Snapshot current = state.get();
+            SpoofProfile previous = current.profiles.get(packageName);
+            if (previous != null)
+                return previous;
+
+            Snapshot next = withProfiles(current, with(current.profiles, packageName, profile), current.artifacts,
+                    profile.isRestricted());
+            if (state.compareAndSet(current, next))
+                break;
+        }
+        if (profile.isRestricted())
+            refreshPolicy();
+        return profile;
+    }
+
+    /*
+     * Unregisters the profile and the artifacts of a package, when it no longer requests
+     * FAKE_PACKAGE_SIGNATURE or is uninstalled, so the registry only ever holds packages
+     * that are installed and spoofing. Both go in the same write, so no reader sees one without the other.
+     * The signature stored for the package is evicted too, see SpoofProfileStore.
+     */
+    public void removePackage(String packageName) {
+        while (true) {
+            Snapshot current = state.get();
+            // Almost every package committed at boot goes through here, and isn't registered
+            if (!current.profiles.containsKey(packageName) && !current.artifacts.containsKey(packageName))
+                return;
+
+            Snapshot next = withProfiles(current, with(current.profiles, packageName, null),
+                    with(current.artifacts, packageName, null), isRestricted(current.profiles.get(packageName)));
+            if (state.compareAndSet(current, next))
+                break;
+        }
+        SpoofProfileStore.Default.get().remove(packageName);
+    }
+
+    /*
+     * Records the app id of a committed package, spoofing or not, in case a restricted package
+     * is or names it.
+     */
+    public void putAppId(String packageName, int appId) {
+        Integer previous = appIds.put(packageName, appId);
+        if (previous == null || previous != appId)
+            refreshPolicy(packageName);
+    }
+
+    /*
+     * Forgets the app id of a package uninstalled for every user.
+     */
+    public void removeAppId(String packageName) {
+        if (appIds.remove(packageName) != null)
+            refreshPolicy(packageName);
+    }
+
+    /*
+     * Rebuilds the policy if it was built with another app id for the package.
+     * 
+     * An app id is always recorded before the policy is looked at, and a restricted profile is always
+     * published before the app ids are looked at again (see putProfile), so whichever of the two
+     * writers comes last sees what the other did.
+     */
+    private void refreshPolicy(String packageName) {
+        // Packages no restricted package names, that is almost all of them
+        if (!state.get().appIds.containsKey(packageName))
+            return;
+
+        refreshPolicy();
+    }
+
+    /*
+     * Rebuilds the policy until it's built from the current app ids.
+     */
+    private void refreshPolicy() {
+        while (true) {
+            Snapshot current = state.get();
+            if (!isOutdated(current))
+                return;
+
+            Snapshot next = withProfiles(current, current.profiles, current.artifacts, true);
+            if (state.compareAndSet(current, next))
+                return;
+        }
+    }
+
+    private boolean isOutdated(Snapshot snapshot) {
+        for (Map.Entry<String, Integer> entry : snapshot.appIds.entrySet()) {
+            Integer appId = appIds.get(entry.getKey());
+            if (appId == null ? entry.getValue() != null : !appId.equals(entry.getValue()))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * @param restrictionChanged Whether a restricted profile was added or removed, so the policy
+     *                           has to be rebuilt. Otherwise the one of the current snapshot is kept.
+     */
+    private Snapshot withProfiles(Snapshot current, Map<String, SpoofProfile> profiles,
+            Map<String, SpoofedSigningArtifacts> artifacts, boolean restrictionChanged) {
+        if (!restrictionChanged)
+            return new Snapshot(profiles, artifacts, current.appIds, current.policy);
+
+        // Slots are given in name order, so the same packages always get the same slots
+        String[] restricted = new String[profiles.size()];
+        int count = 0;
+        for (SpoofProfile profile : profiles.values()) {
+            if (profile.isRestricted())
+                restricted[count++] = profile.getPackageName();
+        }
+        if (count == 0)
+            return new Snapshot(profiles, artifacts, Collections.<String, Integer>emptyMap(), null);
+        Arrays.sort(restricted, 0, count);
+
+        Map<String, Integer> usedAppIds = new HashMap<>();
+        SpoofVisibilityPolicy.Builder builder = new SpoofVisibilityPolicy.Builder();
+        for (int i = 0; i < count; i++) {
+            String[] visibleTo = profiles.get(restricted[i]).getVisibleTo();
+            // The package itself first, then its callers. The ones that aren't installed are simply left out.
+            int[] allowed = new int[visibleTo.length + 1];
+            int allowedCount = 0;
+            for (int j = -1; j < visibleTo.length; j++) {
+                String name = j < 0 ? restricted[i] : visibleTo[j];
+                Integer appId = appIds.get(name);
+                usedAppIds.put(name, appId);
+                if (appId != null)
+                    allowed[allowedCount++] = appId;
+            }
+            builder.restrict(restricted[i], Arrays.copyOf(allowed, allowedCount));
+        }
+        return new Snapshot(profiles, artifacts, Collections.unmodifiableMap(usedAppIds), builder.build());
+    }
+
+    private static boolean isRestricted(SpoofProfile profile) {
+        return profile != null && profile.isRestricted();
+    }
+
+    /*
+     * @return A copy of the map where the package maps to the value, or is missing if the value is null.
+     */
+    private static <T> Map<String, T> with(Map<String, T> map, String packageName, T value) {
+        if (value == null && !map.containsKey(packageName))
+            return map;
+
+        Map<String, T> next = new HashMap<>(map);
+        if (value != null) {
+            next.put(packageName, value);
+        } else {
+            next.remove(packageName);
+        }
+        return Collections.unmodifiableMap(next);
+    }
+}
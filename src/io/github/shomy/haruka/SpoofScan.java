@@ -0,0 +1,58 @@
+package io.github.shomy.haruka;
+
+import android.os.Bundle;
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * What Haruka does with the packages PMS scans or installs: ReconcilePackageUtils spoofs the
+ * signature of the ones requesting SPOOF_PLATFORM_SIGNATURE, and PermissionManagerService
+ * registers the profile of the ones requesting FAKE_PACKAGE_SIGNATURE once they're committed.
+ *
+ * The boot scan goes through both for every package of the device, and almost none of them
+ * asks Haruka for anything. So the permissions of a package are classified first, and only
+ * packages that ask for something go any further. PMS interns permission names, so classifying
+ * is mostly reference comparisons, and it loads nothing but this class. Unregistering a package
+ * only loads SpoofRegistry and its empty Snapshot.
+ */
+@DexAdd
+public final class SpoofScan {
+    // What a package asks for, see classify
+    public static final int SPOOF_SIGNATURE = 1;
+    public static final int FAKE_PACKAGE_SIGNATURE = 2;
+
+    private static final String SPOOF_PLATFORM_SIGNATURE_PERM = "android.permission.SPOOF_PLATFORM_SIGNATURE";
+
+    private SpoofScan() {
+    }
+
+    /*
+     * @param permission The name of a permission requested by a package.
+     * @return SPOOF_SIGNATURE or FAKE_PACKAGE_SIGNATURE if the permission is one of them, 0 otherwise.
+     */
+    public static int classify(String permission) {
+        if (HarukaSignatureSpoofingCore.FAKE_PACKAGE_SIGNATURE_PERM.equals(permission))
+            return FAKE_PACKAGE_SIGNATURE;
+        if (SPOOF_PLATFORM_SIGNATURE_PERM.equals(permission))
+            return SPOOF_SIGNATURE;
+        return 0;
+    }
+
+    /*
+     * Builds the profile of a committed package requesting FAKE_PACKAGE_SIGNATURE, reading its
+     * metadata once, so queries don't have to.
+     */
+    public static void register(String packageName, long versionCode, long lastUpdateTime, Bundle metaData) {
+        SpoofRegistry.INSTANCE.putProfile(SpoofProfile.create(packageName, versionCode, lastUpdateTime, true,
+                metaData));
+        HarukaMetrics.SPOOF_PROFILE_SCANNED.increment();
+    }
+
+    /*
+     * Drops the profile and artifacts of a committed package that doesn't request
+     * FAKE_PACKAGE_SIGNATURE (anymore).
+     */
+    public static void unregister(String packageName) {
+        // Returns right away if the package isn't registered, as almost none is
+        SpoofRegistry.INSTANCE.removePackage(packageName);
+    }
+}
@@ -0,0 +1,120 @@
+package io.github.shomy.haruka;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Decides which callers get to see the fake signature of a package.
+ *
+ * By default a spoofing package shows its fake signature to everyone. A package can restrict
+ * it with the `fake-signature-visible-to` metadata: a comma separated list of the packages
+ * that need it (e.g. the microG clients checking it). Then only those packages, the package
+ * itself and the system (uids below FIRST_APPLICATION_UID) see the fake signature, while
+ * every other caller gets the real one, without Haruka doing any work for it.
+ *
+ * Every restricted package gets a slot, and the policy maps the app id of every allowed
+ * caller to the bitset of the slots it may see, so a check is a single lookup in a
+ * UidBitsetMap. At most 64 packages can be restricted. The packages past that fail closed:
+ * their fake signature is only shown to the system, and every app (the package itself
+ * included) gets the real one. This is counted and logged, since it means that some
+ * restricted package can't work as configured.
+ *
+ * A policy is immutable and built by SpoofRegistry when restricted packages, or the callers they
+ * name, are committed or removed, and published along with the profiles. Queries, on snapshots
+ * and on the live computer alike, only read the current one.
+ */
+@DexAdd
+public final class SpoofVisibilityPolicy {
+    // Process.FIRST_APPLICATION_UID and UserHandle.PER_USER_RANGE
+    private static final int FIRST_APPLICATION_UID = 10000;
+    private static final int PER_USER_RANGE = 100000;
+    private static final int MAX_SLOTS = 64;
+
+    // Slot of packages visible to everyone
+    public static final int UNRESTRICTED_SLOT = -1;
+    // Slot of restricted packages that didn't get a slot of their own, visible to the system only
+    public static final int HIDDEN_SLOT = -2;
+
+    // Policy when no package restricts its fake signature
+    public static final SpoofVisibilityPolicy UNRESTRICTED = new Builder().build();
+
+    private final Map<String, Integer> slots;
+    private final UidBitsetMap callers;
+
+    private SpoofVisibilityPolicy(Map<String, Integer> slots, UidBitsetMap callers) {
+        this.slots = slots;
+        this.callers = callers;
+    }
+
+    /*
+     * @param packageName The name of a spoofing package.
+     * @return The slot of the package, or UNRESTRICTED_SLOT if everyone can see its fake signature.
+     */
+    public int slotOf(String packageName) {
+        Integer slot = slots.get(packageName);
+        return slot != null ? slot : UNRESTRICTED_SLOT;
+    }
+
+    /*
+     * Checks whether a caller can see the fake signature of the package in a slot.
+     * Doesn't allocate anything.
+     *
+     * @param callingUid The uid of the caller.
+     * @param slot The slot of the package, see slotOf.
+     */
+    public boolean isVisible(int callingUid, int slot) {
+        if (slot == UNRESTRICTED_SLOT)
+            return true;
+
+        int appId = callingUid % PER_USER_RANGE;
+        if (appId < FIRST_APPLICATION_UID)
+            return true;
+        if (slot == HIDDEN_SLOT)
+            return false;
+
+        return (callers.get(appId) & (1L << slot)) != 0;
+    }
+
+    public boolean isRestricted() {
+        return !slots.isEmpty();
+    }
+
+    /*
+     * Builds a policy, one restricted package at a time.
+     * Not thread safe.
+     */
+    public static final class Builder {
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final UidBitsetMap.Builder callers = new UidBitsetMap.Builder();
+        private int slotCount = 0;
+
+        /*
+         * Restricts the fake signature of a package to the given app ids.
+         *
+         * @param packageName The name of the spoofing package.
+         * @param appIds The app ids allowed to see the fake signature: the package itself and its callers.
+         * @return false if there are no slots left, and the package is hidden from every app.
+         */
+        public boolean restrict(String packageName, int[] appIds) {
+            if (slotCount == MAX_SLOTS) {
+                slots.put(packageName, HIDDEN_SLOT);
+                HarukaMetrics.VISIBILITY_SLOTS_EXHAUSTED.increment();
+                HarukaLog.log(HarukaLog.VISIBILITY_SLOTS_EXHAUSTED, packageName);
+                return false;
+            }
+
+            int slot = slotCount++;
+            slots.put(packageName, slot);
+            for (int appId : appIds) {
+                callers.set(appId, slot);
+            }
+            return true;
+        }
+
+        public SpoofVisibilityPolicy build() {
+            return new SpoofVisibilityPolicy(new HashMap<>(slots), callers.build());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.shomy.haruka;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * SDK objects holding the fake signature of a spoofing package.
+ * 
+ * They're built once per package version from its SpoofProfile, and the signing structures
+ * only when a caller actually asks for them:
+ * GET_SIGNATURES only needs the Signature[], GET_SIGNING_CERTIFICATES only needs the SigningInfo.
+ * 
+ * The SDK objects are built through the SdkBridge of the running SDK, so this class stays SDK agnostic.
+ */
+@DexAdd
+public final class SpoofedSigningArtifacts {
+    private final String packageName;
+    private final long versionCode;
+    private final long lastUpdateTime;
+    private final SdkBridge bridge;
+    private final Object signature;
+    // Signatures backing the SigningInfo, so shared with whoever gets it (see getSigningInfo)
+    private final Object[] signingSignatures;
+    private volatile Object signingInfo;
+
+    private SpoofedSigningArtifacts(String packageName, long versionCode, long lastUpdateTime, SdkBridge bridge,
+            Object signature) {
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.lastUpdateTime = lastUpdateTime;
+        this.bridge = bridge;
+        this.signature = signature;
+        this.signingSignatures = bridge.newSignatureArray(signature);
+    }
+
+    /*
+     * Returns the artifacts of the given package version, building them only if they weren't
+     * already built for this version.
+     * 
+     * @param profile The profile of the package, which must be able to spoof.
+     * @param lastUpdateTime The last update time of the package, to tell apart reinstalls of the same version.
+     * @param bridge The SdkBridge of the running SDK.
+     * @return The artifacts of the package, or null if they can't be built.
+     */
+    public static SpoofedSigningArtifacts obtain(SpoofProfile profile, long lastUpdateTime, SdkBridge bridge) {
+        // Artifacts are only reused while the package version they were built for is still installed
+        SpoofedSigningArtifacts artifacts = SpoofRegistry.INSTANCE.get(profile.getPackageName());
+        if (artifacts != null && artifacts.versionCode == profile.getVersionCode()
+                && artifacts.lastUpdateTime == lastUpdateTime) {
+            return artifacts;
+        }
+
+        try {
+            artifacts = new SpoofedSigningArtifacts(profile.getPackageName(), profile.getVersionCode(), lastUpdateTime,
+                    bridge, bridge.newSignature(profile.getSignature()));
+        } catch (RuntimeException e) {
+            HarukaLog.log(HarukaLog.SIGNATURE_DECODE_FAILED, profile.getPackageName(), e);
+            SpoofRegistry.INSTANCE.remove(profile.getPackageName());
+            return null;
+        }
+
+        SpoofRegistry.INSTANCE.put(artifacts);
+        return artifacts;
+    }
+
+    public SdkBridge getBridge() {
+        return bridge;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public long getVersionCode() {
+        return versionCode;
+    }
+
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    /*
+     * Returns a new Signature[] holding the fake signature, for PackageInfo.signatures.
+     * The array is never shared, so callers are free to modify it, while Signature itself
+     * is immutable.
+     */
+    public Object[] newSignatures() {
+        return bridge.newSignatureArray(signature);
+    }
+
+    /*
+     * Returns the SigningInfo holding the fake signature, for PackageInfo.signingInfo.
+     * It's built the first time it's requested and then shared, the same way PMS shares
+     * the SigningDetails of a package between all the PackageInfo it generates.
+     * 
+     * Like those, it relies on no one modifying it: SigningInfo hands out the Signature[]
+     * backing it without copying it, so code in system_server must not write to that array.
+     * Apps are not a concern, they get their own copy of the PackageInfo through the binder.
+     */
+    public Object getSigningInfo() {
+        Object info = signingInfo;
+        if (info == null) {
+            // Racing threads might both build one, which is harmless as they're equivalent
+            info = bridge.newSigningInfo(signingSignatures);
+            signingInfo = info;
+        }
+        return info;
+    }
+}
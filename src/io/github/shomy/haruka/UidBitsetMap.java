@@ -0,0 +1,131 @@
+package io.github.shomy.haruka;
+
+import java.util.Arrays;
+
+import lanchon.dexpatcher.annotation.DexAdd;
+
+/*
+ * Immutable map from a uid (or app id) to a 64 bit set, without boxing anything.
+ *
+ * Keys and values live in two parallel arrays, using open addressing with linear probing.
+ * The table is kept at most half full, so a lookup is one hash and, most of the time,
+ * a single probe. Lookups never allocate, which matters since they run on binder threads
+ * for every query they guard.
+ *
+ * Maps are built with a Builder and never change afterwards, so they can be shared between
+ * threads once published (see SpoofVisibilityPolicy).
+ */
+@DexAdd
+public final class UidBitsetMap {
+    // Uids are never negative, so this marks the free slots
+    private static final int FREE = -1;
+
+    public static final UidBitsetMap EMPTY = new Builder().build();
+
+    private final int[] keys;
+    private final long[] values;
+    private final int mask;
+
+    private UidBitsetMap(int[] keys, long[] values) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.length - 1;
+    }
+
+    /*
+     * @param key The uid to look up.
+     * @return The bits set for the uid, or 0 if it's not in the map.
+     */
+    public long get(int key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            int k = keys[slot];
+            if (k == key)
+                return values[slot];
+            if (k == FREE)
+                return 0;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int key : keys) {
+            if (key != FREE)
+                size++;
+        }
+        return size;
+    }
+
+    // Spreads consecutive uids over the table (Fibonacci hashing)
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Collects the bits of every uid, then builds a map sized for them.
+     * Not thread safe, and meant to be used once.
+     */
+    public static final class Builder {
+        private int[] keys = new int[16];
+        private long[] values = new long[16];
+        private int size;
+
+        public Builder() {
+            Arrays.fill(keys, FREE);
+        }
+
+        /*
+         * Sets a bit of a uid, adding the uid if needed.
+         *
+         * @param key The uid, must not be negative.
+         * @param bit The bit to set, between 0 and 63.
+         */
+        public Builder set(int key, int bit) {
+            if (key < 0)
+                throw new IllegalArgumentException("Negative uid: " + key);
+
+            int slot = find(keys, key);
+            if (keys[slot] == FREE) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    slot = find(keys, key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] |= 1L << bit;
+            return this;
+        }
+
+        public UidBitsetMap build() {
+            return new UidBitsetMap(keys.clone(), values.clone());
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            Arrays.fill(keys, FREE);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    int slot = find(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        // Slot holding the key, or the free slot where it would go
+        private static int find(int[] keys, int key) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != FREE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
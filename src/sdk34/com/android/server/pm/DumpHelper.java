@@ -0,0 +1,47 @@
+package com.android.server.pm;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.os.Process;
+import io.github.shomy.haruka.HarukaTrace;
+import lanchon.dexpatcher.annotation.DexAdd;
+import lanchon.dexpatcher.annotation.DexEdit;
+import lanchon.dexpatcher.annotation.DexWrap;
+
+@DexEdit(contentOnly = true)
+final class DumpHelper {
+    /*
+     * `dumpsys package haruka-trace` writes the spans recorded so far to HarukaTrace.DEFAULT_PATH.
+     * Any other dump runs as usual and never touches the trace, so dumps taken by bug reports
+     * don't write anything.
+     * 
+     * PMS only gets here once the caller was allowed to dump. Unknown arguments would be taken
+     * for a package name, so the command is handled before the original method sees it.
+     */
+    @DexWrap
+    public void doDump(Computer snapshot, FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length > 0 && HarukaTrace.DUMP_COMMAND.equals(args[0])) {
+            dumpHarukaTrace(pw);
+            return;
+        }
+        doDump(snapshot, fd, pw, args);
+    }
+
+    @DexAdd
+    private static void dumpHarukaTrace(PrintWriter pw) {
+        if (!HarukaTrace.isEnabled()) {
+            pw.println("Haruka trace: tracing is off, set " + HarukaTrace.ENABLE_PROPERTY + " to true and reboot");
+            return;
+        }
+
+        try {
+            int spans = HarukaTrace.export(new File(HarukaTrace.DEFAULT_PATH), Process.myPid());
+            pw.println("Haruka trace: " + spans + " spans written to " + HarukaTrace.DEFAULT_PATH);
+        } catch (IOException e) {
+            pw.println("Haruka trace: cannot write " + HarukaTrace.DEFAULT_PATH + ": " + e);
+        }
+    }
+}
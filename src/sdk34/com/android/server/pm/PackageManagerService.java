@@ -0,0 +1,72 @@
+package com.android.server.pm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.android.server.pm.parsing.pkg.AndroidPackageInternal;
+
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import com.android.server.pm.pkg.PackageStateInternal;
+import io.github.shomy.haruka.HarukaTrace;
+import io.github.shomy.haruka.HarukaWarmup;
+import io.github.shomy.haruka.PlatformSdkBridge;
+import lanchon.dexpatcher.annotation.DexAdd;
+import lanchon.dexpatcher.annotation.DexEdit;
+import lanchon.dexpatcher.annotation.DexIgnore;
+import lanchon.dexpatcher.annotation.DexWrap;
+
+@DexEdit(contentOnly = true)
+public class PackageManagerService {
+    // Referenced by InstallRequest
+    @DexIgnore
+    public @interface ScanFlags {
+    }
+
+    /*
+     * Once PMS is ready, we warm up the spoof state of the packages that may spoof in the
+     * background, so the first queries after boot don't have to build it.
+     * 
+     * Tracing is turned on here too, if HarukaTrace.ENABLE_PROPERTY is set.
+     * ReconcilePackageUtils already checks it for the boot scan, which runs before this.
+     */
+    @DexWrap
+    public void systemReady() {
+        systemReady();
+        HarukaTrace.setEnabled(SystemProperties.getBoolean(HarukaTrace.ENABLE_PROPERTY, false));
+        HarukaWarmup.start(new HarukaWarmupSource(snapshotComputer()), PlatformSdkBridge.INSTANCE);
+    }
+
+    @DexIgnore
+    public Computer snapshotComputer() {
+        throw null;
+    }
+
+    /*
+     * Lists the packages of a snapshot that request FAKE_PACKAGE_SIGNATURE. Snapshots are
+     * immutable, so this is safe to run on the warm-up thread.
+     */
+    @DexAdd
+    static final class HarukaWarmupSource implements HarukaWarmup.Source {
+        private final Computer snapshot;
+
+        HarukaWarmupSource(Computer snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public List<HarukaWarmup.Target> collect() {
+            ArrayMap<String, ? extends PackageStateInternal> packageStates = snapshot.getPackageStates();
+            List<HarukaWarmup.Target> targets = new ArrayList<>();
+            for (int i = 0; i < packageStates.size(); i++) {
+                PackageStateInternal ps = packageStates.valueAt(i);
+                AndroidPackageInternal pp = ps.getPkg();
+                if (pp != null && ComputerEngine.declaresHarukaSpoofingPermission(pp)) {
+                    targets.add(new HarukaWarmup.Target(pp.getPackageName(), pp.getLongVersionCode(),
+                            ps.getLastUpdateTime(), pp.getMetaData()));
+                }
+            }
+            return targets;
+        }
+    }
+}
@@ -2,14 +2,23 @@ package com.android.server.pm;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 import com.android.server.pm.pkg.AndroidPackage;
 import com.android.server.pm.pkg.component.ParsedUsesPermission;
 
 import io.github.shomy.haruka.Haruka;
+import io.github.shomy.haruka.HarukaMetrics;
+import io.github.shomy.haruka.HarukaTrace;
+import io.github.shomy.haruka.SpoofScan;
 
+import android.content.pm.SigningDetails;
+import android.os.SystemProperties;
 import android.util.Log;
 import lanchon.dexpatcher.annotation.DexAdd;
 import lanchon.dexpatcher.annotation.DexEdit;
@@ -21,8 +30,18 @@ final class ReconcilePackageUtils {
 	final static String PLATFORM_PACKAGE_NAME = "android";
 	@DexAdd
 	final static String PLATFORM_PACKAGE_SPOOF_PERMISSION = "android.permission.SPOOF_PLATFORM_SIGNATURE";
+	/*
+	 * Above this many install requests, they're classified in parallel.
+	 * At boot, most reconcile calls only carry a single request, so forking would just be overhead.
+	 * */
+	@DexAdd
+	private final static int PARALLEL_CLASSIFY_THRESHOLD = 64;
+	/*
+	 * Whether HarukaTrace.ENABLE_PROPERTY was checked. The boot scan runs way before
+	 * PackageManagerService.systemReady, so we check it here to trace it too.
+	 * */
 	@DexAdd
-	private static AndroidPackage platformPackage = null;
+	private static boolean traceChecked;
 
 	/* 
 	 * This function is responsible for verifying packages signatures during boot.
@@ -30,10 +49,18 @@ final class ReconcilePackageUtils {
 	 * we wrap the function to allow to spoofing packages that require the
 	 * platform key to have the right signature before the actual verification happens.
 	 * 
-	 * Ideally, we would want to allow every system installed packages to spoof their 
-	 * signature (this includes vendor apps that are being modified but aren't signed with platform key),
-	 * but I have to find a way to get the expected package signature from SharedUserSettings at this
-	 * step during boot.
+	 * Packages with a shared user spoof to the signature of their shared user instead, as found in
+	 * Settings, so modified system (and vendor) apps that aren't signed with the platform key can
+	 * boot too. The signatures of every shared user are indexed in a single pass, and only for the
+	 * batches with a package that can spoof, so the boot scan doesn't pay for it.
+	 * 
+	 * The platform package is kept local to each call, since install sessions can reconcile
+	 * concurrently with the boot scan. The request list is only copied if at least one request
+	 * has to be replaced, as callers often pass immutable (singleton) lists.
+	 * 
+	 * The SpoofProfile of packages requesting FAKE_PACKAGE_SIGNATURE isn't built here, as the
+	 * install may still fail after reconciling: it's built once the package is committed, see
+	 * PermissionManagerService.
 	 * 
 	 * */
 	@DexWrap
@@ -45,57 +72,210 @@ final class ReconcilePackageUtils {
             KeySetManagerService ksms, Settings settings)
             throws ReconcileFailure
     {
-		final List<InstallRequest> newInstallRequests = new ArrayList<>(installRequests.size());
-		
-
-		platformPackage = allPackages.get(PLATFORM_PACKAGE_NAME);
-		
-		if (platformPackage == null) {
-			// We weren't able to get the platform key programmatically, so we avoid spoofing
+		// Batches without a package that can spoof (almost all of the boot scan) are let through
+		// once classified, without setting up anything, see Haruka.
+		final boolean[] canSpoof = classifyInstallRequests(installRequests);
+		if (canSpoof == null)
 			return reconcilePackages(installRequests, allPackages, versionInfos, sharedLibraries, ksms, settings);
+
+		HarukaMetrics.RECONCILE_PACKAGES_CALLS.increment();
+		if (!traceChecked) {
+			HarukaTrace.setEnabled(SystemProperties.getBoolean(HarukaTrace.ENABLE_PROPERTY, false));
+			traceChecked = true;
 		}
+		final long span = HarukaTrace.begin();
+		final long start = System.nanoTime();
+		final long spoofSpan = HarukaTrace.begin();
 
-		for (InstallRequest installRequest : installRequests) {
-			final ParsedPackage parsedPackage = installRequest.getParsedPackage();
+		final AndroidPackage platformPackage = allPackages.get(PLATFORM_PACKAGE_NAME);
+		// Without the platform package there's no platform key, and only shared users can be spoofed to
+		final SigningDetails platformSigningDetails = platformPackage != null ? platformPackage.getSigningDetails() : null;
+		Map<String, SigningDetails> sharedUserSigningDetails = null;
+		List<InstallRequest> newInstallRequests = installRequests;
 
-			if (canSpoofPlatformSignature(parsedPackage)) {
-				parsedPackage.setSigningDetails(platformPackage.getSigningDetails());
-
-				final InstallRequest newInstallRequest = new InstallRequest(
-						parsedPackage,
-						installRequest.getParseFlags(),
-						installRequest.getScanFlags(),
-						installRequest.getUser(),
-						installRequest.getScanResult()
-						);
-				
-				newInstallRequests.add(newInstallRequest);
-				Log.w(Haruka.TAG, "Spoofed platform signature for package " + parsedPackage.getPackageName());
+		for (int i = 0; i < canSpoof.length; i++) {
+			if (!canSpoof[i])
 				continue;
+
+			if (sharedUserSigningDetails == null) {
+				final long indexSpan = HarukaTrace.begin();
+				sharedUserSigningDetails = indexSharedUserSigningDetails(settings);
+				HarukaTrace.end(HarukaTrace.RECONCILE_PACKAGES_SHARED_USER_INDEX, indexSpan);
 			}
 
-			newInstallRequests.add(installRequest);
+			final InstallRequest installRequest = installRequests.get(i);
+			final ParsedPackage parsedPackage = installRequest.getParsedPackage();
+			final SigningDetails signingDetails =
+					findExpectedSigningDetails(parsedPackage, sharedUserSigningDetails, platformSigningDetails);
+			if (signingDetails == null)
+				continue;
+
+			if (newInstallRequests == installRequests) {
+				newInstallRequests = new ArrayList<>(installRequests);
+			}
+
+			parsedPackage.setSigningDetails(signingDetails);
+
+			final InstallRequest newInstallRequest = new InstallRequest(
+					parsedPackage,
+					installRequest.getParseFlags(),
+					installRequest.getScanFlags(),
+					installRequest.getUser(),
+					installRequest.getScanResult()
+					);
+			
+			newInstallRequests.set(i, newInstallRequest);
+			if (signingDetails == platformSigningDetails) {
+				HarukaMetrics.RECONCILE_PACKAGES_PLATFORM_SPOOFED.increment();
+				Log.w(Haruka.TAG, "Spoofed platform signature for package " + parsedPackage.getPackageName());
+			} else {
+				HarukaMetrics.RECONCILE_PACKAGES_SHARED_USER_SPOOFED.increment();
+				Log.w(Haruka.TAG, "Spoofed signature of shared user " + parsedPackage.getSharedUserId()
+						+ " for package " + parsedPackage.getPackageName());
+			}
 		}
 
-		return reconcilePackages(newInstallRequests, allPackages, versionInfos, sharedLibraries, ksms, settings);
+		HarukaTrace.end(HarukaTrace.RECONCILE_PACKAGES_SPOOF, spoofSpan);
+		HarukaMetrics.RECONCILE_PACKAGES_LATENCY.record(System.nanoTime() - start);
+		final long originalSpan = HarukaTrace.begin();
+		final List<ReconciledPackage> reconciled =
+				reconcilePackages(newInstallRequests, allPackages, versionInfos, sharedLibraries, ksms, settings);
+		HarukaTrace.end(HarukaTrace.RECONCILE_PACKAGES_ORIGINAL, originalSpan);
+		HarukaTrace.end(HarukaTrace.RECONCILE_PACKAGES, span);
+		return reconciled;
     }
+
+	/*
+	 * Maps every shared user to the signing details its packages are expected to have, in a single
+	 * pass over the shared users of Settings. Shared users that don't have any yet (no package of
+	 * theirs was installed so far) are left out.
+	 * 
+	 * reconcilePackages runs with the PMS lock held, so Settings can be read as is.
+	 * */
+	@DexAdd
+	private static Map<String, SigningDetails> indexSharedUserSigningDetails(Settings settings) {
+		final Collection<SharedUserSetting> sharedUsers = settings.getAllSharedUsersLPw();
+		final Map<String, SigningDetails> index = new HashMap<>(sharedUsers.size() * 2);
+		for (SharedUserSetting sharedUser : sharedUsers) {
+			final SigningDetails signingDetails = sharedUser.getSigningDetails();
+			if (signingDetails != null && signingDetails.getSignatures() != null
+					&& signingDetails.getSignatures().length > 0) {
+				index.put(sharedUser.getName(), signingDetails);
+			}
+		}
+		return index;
+	}
+
+	/*
+	 * Finds the signing details a package that can spoof is expected to have: the ones of its
+	 * shared user if the shared user has any, the platform ones otherwise.
+	 * 
+	 * @param pp The package, that can spoof (see canSpoofSignature).
+	 * @param sharedUserSigningDetails The index built by indexSharedUserSigningDetails.
+	 * @param platformSigningDetails The signing details of the platform package, or null if unknown.
+	 * @return The signing details to spoof to, or null if the package already has them.
+	 * */
+	@DexAdd
+	private static SigningDetails findExpectedSigningDetails(ParsedPackage pp,
+			Map<String, SigningDetails> sharedUserSigningDetails, SigningDetails platformSigningDetails) {
+		final String sharedUserId = pp.getSharedUserId();
+		final SigningDetails expected = sharedUserId != null ? sharedUserSigningDetails.get(sharedUserId) : null;
+		if (expected != null) {
+			final SigningDetails signingDetails = pp.getSigningDetails();
+			return signingDetails != null && signingDetails.signaturesMatchExactly(expected) ? null : expected;
+		}
+
+		if (platformSigningDetails == null || pp.isSignedWithPlatformKey())
+			return null;
+		return platformSigningDetails;
+	}
+
+	/*
+	 * Finds out which install requests can spoof their signature, in a single pass over
+	 * the permissions of each. Large batches are split over the common fork-join pool,
+	 * since every request is independent.
+	 * 
+	 * @return Whether every request can spoof, or null if none can.
+	 * */
+	@DexAdd
+	private static boolean[] classifyInstallRequests(List<InstallRequest> installRequests) {
+		if (installRequests.size() >= PARALLEL_CLASSIFY_THRESHOLD) {
+			final boolean[] canSpoof = new boolean[installRequests.size()];
+			ForkJoinPool.commonPool().invoke(new ClassifyTask(installRequests, canSpoof, 0, canSpoof.length));
+			for (boolean spoofs : canSpoof) {
+				if (spoofs)
+					return canSpoof;
+			}
+			return null;
+		}
+
+		boolean[] canSpoof = null;
+		for (int i = 0; i < installRequests.size(); i++) {
+			if (!canSpoofSignature(installRequests.get(i).getParsedPackage()))
+				continue;
+
+			if (canSpoof == null)
+				canSpoof = new boolean[installRequests.size()];
+			canSpoof[i] = true;
+		}
+		return canSpoof;
+	}
+
+	/*
+	 * Classifies a range of install requests, splitting it in half until it's small enough.
+	 * */
+	@DexAdd
+	private static final class ClassifyTask extends RecursiveAction {
+		private final static int SEQUENTIAL_THRESHOLD = 16;
+
+		private final List<InstallRequest> installRequests;
+		private final boolean[] canSpoof;
+		private final int from;
+		private final int to;
+
+		ClassifyTask(List<InstallRequest> installRequests, boolean[] canSpoof, int from, int to) {
+			this.installRequests = installRequests;
+			this.canSpoof = canSpoof;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					canSpoof[i] = canSpoofSignature(installRequests.get(i).getParsedPackage());
+				}
+				return;
+			}
+
+			final int middle = (from + to) >>> 1;
+			invokeAll(new ClassifyTask(installRequests, canSpoof, from, middle),
+					new ClassifyTask(installRequests, canSpoof, middle, to));
+		}
+	}
 	
 	
 	/*
-	 * Verifies if a package can spoof its signature to the platform key.
-	 * More checks need to be put in place to restrict the signature spoofing
+	 * Verifies if a package can spoof its signature, to the one of its shared user or to the platform key
+	 * (see findExpectedSigningDetails). More checks need to be put in place to restrict the signature spoofing
 	 * ability only to apps installed into /system, /system_ext and maybe /product and /vendor.
+	 * 
+	 * Not private, as ClassifyTask calls it and a synthetic accessor would have no target to patch.
 	 * */
 	@DexAdd
-	private static boolean canSpoofPlatformSignature(ParsedPackage pp) {
-		boolean containsPermission = false;
-		for (ParsedUsesPermission permission : pp.getUsesPermissions()) {
-			if (permission.getName().equals(PLATFORM_PACKAGE_SPOOF_PERMISSION))
-			{
+	static boolean canSpoofSignature(ParsedPackage pp) {
+		if (pp == null)
+			return false;
+
+		int flags = 0;
+		final List<ParsedUsesPermission> usesPermissions = pp.getUsesPermissions();
+		for (int i = 0; i < usesPermissions.size(); i++) {
+			final ParsedUsesPermission permission = usesPermissions.get(i);
+			final int flag = SpoofScan.classify(permission.getName());
+			if (flag == SpoofScan.SPOOF_SIGNATURE && (flags & flag) == 0)
 				Log.w(Haruka.TAG, "Package " + pp.getPackageName() + " has permission " + permission.getName());
-				containsPermission = true;
-				break;
-			}
+			flags |= flag;
 		}
 		
 
@@ -103,7 +283,6 @@ final class ReconcilePackageUtils {
 		// Ideally, we would want to have more checks in here, like 
 		/* boolean isSystemApp = pp.isSystemExt() || pp.isSystem() || pp.isProduct(); */	
 		boolean isSystemApp = pp.isCoreApp();
-
-		return !pp.isSignedWithPlatformKey() && containsPermission && isSystemApp;
+		return isSystemApp && (flags & SpoofScan.SPOOF_SIGNATURE) != 0;
 	}
 }
@@ -0,0 +1,92 @@
+package com.android.server.pm.permission;
+
+import java.util.List;
+
+import com.android.server.pm.pkg.AndroidPackage;
+import com.android.server.pm.pkg.PackageState;
+import com.android.server.pm.pkg.component.ParsedUsesPermission;
+
+import android.os.UserHandle;
+import io.github.shomy.haruka.SpoofGrantState;
+import io.github.shomy.haruka.SpoofRegistry;
+import io.github.shomy.haruka.SpoofScan;
+import lanchon.dexpatcher.annotation.DexAdd;
+import lanchon.dexpatcher.annotation.DexEdit;
+import lanchon.dexpatcher.annotation.DexWrap;
+
+/*
+ * Permission changes are caught in PermissionManagerServiceImpl, where they all end up.
+ * Here are the changes that don't go through it: installs and uninstalls (an app id might
+ * be reused by another package), and removed users. Each one is let through first, so
+ * queries arriving after it returns see the new state. Uninstalls for every user also drop the
+ * spoof state of the package, so SpoofRegistry doesn't keep packages that are gone.
+ *
+ * Every package PMS commits, from the boot scan or an install, is added here too. That's where
+ * the profiles of the packages requesting FAKE_PACKAGE_SIGNATURE are registered: unlike at
+ * reconcile time, the install can't fail anymore, so a profile is never registered for an
+ * install that didn't happen.
+ */
+@DexEdit(contentOnly = true)
+public class PermissionManagerService {
+    @DexEdit(contentOnly = true)
+    private class PermissionManagerServiceInternalImpl {
+        @DexWrap
+        public void onPackageAdded(PackageState packageState, boolean isInstantApp, AndroidPackage oldPkg) {
+            onPackageAdded(packageState, isInstantApp, oldPkg);
+            registerHarukaSpoofProfile(packageState);
+        }
+
+        /*
+         * Registers the profile of a committed package if it requests FAKE_PACKAGE_SIGNATURE,
+         * and drops the one of a previous version otherwise. The app id of every package is
+         * recorded too, for the packages restricting who sees their fake signature.
+         */
+        @DexAdd
+        private void registerHarukaSpoofProfile(PackageState packageState) {
+            final AndroidPackage pkg = packageState.getAndroidPackage();
+            if (pkg == null)
+                return;
+
+            SpoofRegistry.INSTANCE.putAppId(pkg.getPackageName(), packageState.getAppId());
+
+            int flags = 0;
+            final List<ParsedUsesPermission> usesPermissions = pkg.getUsesPermissions();
+            for (int i = 0; i < usesPermissions.size(); i++) {
+                flags |= SpoofScan.classify(usesPermissions.get(i).getName());
+            }
+
+            if ((flags & SpoofScan.FAKE_PACKAGE_SIGNATURE) != 0) {
+                SpoofScan.register(pkg.getPackageName(), pkg.getLongVersionCode(), packageState.getLastUpdateTime(),
+                        pkg.getMetaData());
+            } else {
+                SpoofScan.unregister(pkg.getPackageName());
+            }
+        }
+
+        @DexWrap
+        public void onPackageInstalled(AndroidPackage pkg, int previousAppId,
+                PermissionManagerServiceInternal.PackageInstalledParams params, int userId) {
+            onPackageInstalled(pkg, previousAppId, params, userId);
+            SpoofGrantState.INSTANCE.invalidate(userId);
+        }
+
+        @DexWrap
+        public void onPackageUninstalled(String packageName, int appId, PackageState packageState,
+                AndroidPackage pkg, List<AndroidPackage> sharedUserPkgs, int userId) {
+            onPackageUninstalled(packageName, appId, packageState, pkg, sharedUserPkgs, userId);
+            SpoofGrantState.INSTANCE.invalidate(userId);
+            // Queries only look at the packages in the registry, so a package is only dropped once
+            // it's gone for every user
+            if (userId == UserHandle.USER_ALL) {
+                SpoofRegistry.INSTANCE.removePackage(packageName);
+                SpoofRegistry.INSTANCE.removeAppId(packageName);
+            }
+        }
+
+        @DexWrap
+        public void onUserRemoved(int userId) {
+            onUserRemoved(userId);
+            SpoofGrantState.INSTANCE.invalidate(userId);
+        }
+    }
+}
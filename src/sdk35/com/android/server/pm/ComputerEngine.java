@@ -1,18 +1,23 @@
 package com.android.server.pm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.android.internal.pm.parsing.pkg.AndroidPackageInternal;
 import com.android.server.pm.pkg.PackageStateInternal;
 
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.Signature;
-import android.content.pm.SigningDetails;
-import android.content.pm.SigningInfo;
-import io.github.shomy.haruka.HarukaPackageWrapper;
+import android.os.Binder;
+import io.github.shomy.haruka.HarukaMetrics;
 import io.github.shomy.haruka.HarukaSignatureSpoofingCore;
+import io.github.shomy.haruka.HarukaSpoofCache;
+import io.github.shomy.haruka.HarukaTrace;
+import io.github.shomy.haruka.PlatformSdkBridge;
+import io.github.shomy.haruka.SpoofGrantState;
+import io.github.shomy.haruka.SpoofProfile;
+import io.github.shomy.haruka.SpoofQuery;
+import io.github.shomy.haruka.SpoofRegistry;
 import lanchon.dexpatcher.annotation.DexAdd;
 import lanchon.dexpatcher.annotation.DexEdit;
 import lanchon.dexpatcher.annotation.DexWrap;
@@ -21,6 +26,12 @@ import lanchon.dexpatcher.annotation.DexWrap;
 public class ComputerEngine {
     @DexAdd
     public static final String FAKE_PACKAGE_SIGNATURE_PERM = "android.permission.FAKE_PACKAGE_SIGNATURE";
+    /*
+     * Spoof state of the packages in this snapshot. Lazily created, since dexpatcher
+     * doesn't let us touch the constructors of the class.
+     */
+    @DexAdd
+    private volatile HarukaSpoofCache mHarukaSpoofCache;
 
     /*
      * This method is involved in generating the package signatures, so by wrapping
@@ -34,55 +45,129 @@ public class ComputerEngine {
      */
     @DexWrap
     public final PackageInfo generatePackageInfo(PackageStateInternal ps, long flags, int userId) {
-        PackageInfo pi = generatePackageInfo(ps, flags | PackageManager.GET_PERMISSIONS, userId);
+        // Queries that don't ask for signatures (that is, almost all of them) are let through
+        // right away, without looking anything up or allocating anything. This check is all
+        // Haruka does until the first query asking for signatures, so nothing else of it gets
+        // loaded on the boot path, see Haruka.
+        if (!HarukaSignatureSpoofingCore.requestsSignatures(flags))
+            return generatePackageInfo(ps, flags, userId);
+
+        HarukaMetrics.GENERATE_PACKAGE_INFO_SIGNATURE_CALLS.increment();
+
+        AndroidPackageInternal pp = ps != null ? ps.getPkg() : null;
 
         // This is a necessary base case, and also saves us some resources
-        if (pi == null || ps == null)
-            return pi;
+        if (pp == null)
+            return generatePackageInfo(ps, flags, userId);
 
-        AndroidPackageInternal pp = ps.getPkg();
+        // Whether the package can spoof only depends on the package itself, so we find it out
+        // before generating anything. Packages that can't spoof (that is, almost all of them)
+        // get exactly what the caller asked for.
+        long entrySpan = HarukaTrace.begin();
+        HarukaSpoofCache.Entry entry = getHarukaSpoofEntry(ps, pp);
+        HarukaTrace.end(HarukaTrace.GET_SPOOF_ENTRY, entrySpan);
+        if (!entry.isSpoofing())
+            return generatePackageInfo(ps, flags, userId);
+
+        // From here on, what to do is decided by SpoofQuery, which the host checks run too.
+        if (!SpoofQuery.appliesTo(entry, Binder.getCallingUid()))
+            return generatePackageInfo(ps, flags, userId);
+
+        // The bitmap has to be taken before the grant state is read
+        AtomicLongArray grants = SpoofGrantState.INSTANCE.bitmapOf(userId);
+        int grant = SpoofQuery.grantStateOf(grants, ps.getAppId());
+        if (grant == SpoofGrantState.DENIED)
+            return generatePackageInfo(ps, flags, userId);
+
+        long span = HarukaTrace.begin();
+        long start = System.nanoTime();
+        long originalSpan = HarukaTrace.begin();
+        PackageInfo pi = generatePackageInfo(ps, SpoofQuery.generateFlags(grant, flags), userId);
+        HarukaTrace.end(HarukaTrace.GENERATE_PACKAGE_INFO_ORIGINAL, originalSpan);
+        return SpoofQuery.finish(pi, flags, grant, entry, grants, ps.getAppId(), start, span);
+    }
 
-        if (pp == null) {
-            return pi;
+    /*
+     * Appends the Haruka metrics to the version section of `dumpsys package`,
+     * so they can be read with `adb shell dumpsys package version`.
+     * The trace has its own dump command, see DumpHelper.
+     */
+    @DexWrap
+    public final void dump(int type, FileDescriptor fd, PrintWriter pw, DumpState dumpState) {
+        dump(type, fd, pw, dumpState);
+
+        if (type == DumpState.DUMP_VERSION && !dumpState.isCheckIn()) {
+            pw.println();
+            HarukaMetrics.dump(pw, "");
         }
+    }
 
-        HarukaPackageWrapper hp = new HarukaPackageWrapper(
-                pp.getPackageName(),
-                pi.requestedPermissions,
-                pi.requestedPermissionsFlags,
-                flags,
-                pp.getMetaData());
-
-        if (HarukaSignatureSpoofingCore.hasSignatureSpoofing(hp)
-                && HarukaSignatureSpoofingCore.isSpoofingPermissionGranted(hp)) {
-            @SuppressWarnings("unchecked")
-            Map<String, Class<?>> classMap = new HashMap<>();
-            classMap.put("SigningDetails", SigningDetails.class);
-            classMap.put("SigningInfo", SigningInfo.class);
-            classMap.put("Signature", Signature.class);
-            pi = HarukaSignatureSpoofingCore.spoofSignature(pi, flags, hp, classMap);
+    /*
+     * Returns the spoof entry of the package, computing it only once per snapshot.
+     * 
+     * ComputerLocked (the live computer) extends this class too, but its state can change
+     * under our feet, so we only cache on actual snapshots.
+     * 
+     * Which packages may spoof is kept by SpoofRegistry as they're committed, so for all the others
+     * the answer is a lookup there, and nothing is cached (or allocated) for them.
+     */
+    @DexAdd
+    private HarukaSpoofCache.Entry getHarukaSpoofEntry(PackageStateInternal ps, AndroidPackageInternal pp) {
+        SpoofRegistry.Snapshot registry = SpoofRegistry.INSTANCE.snapshot();
+        if (!registry.mayBeSpoofing(pp.getPackageName()))
+            return HarukaSpoofCache.NOT_SPOOFING;
+
+        HarukaSpoofCache cache = getHarukaSpoofCache();
+        if (cache != null) {
+            HarukaSpoofCache.Entry entry = cache.get(pp.getPackageName());
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        HarukaMetrics.SPOOF_CACHE_MISSES.increment();
+        HarukaSpoofCache.Entry entry = HarukaSpoofCache.NOT_SPOOFING;
+        if (declaresHarukaSpoofingPermission(pp)) {
+            // Whether the package can spoof was found out when it was committed, the metadata
+            // is only read here if it wasn't. Who sees its fake signature was found out then too.
+            SpoofProfile profile = SpoofProfile.lookup(pp.getPackageName(), pp.getLongVersionCode(),
+                    ps.getLastUpdateTime(), pp.getMetaData());
+            entry = HarukaSignatureSpoofingCore.createSpoofEntry(profile, ps.getLastUpdateTime(),
+                    PlatformSdkBridge.INSTANCE, registry.getVisibilityPolicy());
         }
 
-        /*
-         * NOTE: Why this code?
-         * This step is really important!
-         * Above, we used generatePackageInfo to force get the permissions from the
-         * package,
-         * since we check them in `hasSignatureSpoofing`.
-         * If we don't force them back, there might be an unexpected issue, such as an
-         * app
-         * verifying back the flags.
-         * 
-         * This is taken from haystack, but it took me a while to figure out why it was
-         * there.
-         */
-        if ((flags & PackageManager.GET_PERMISSIONS) == 0) {
-            pi.permissions = null;
-            pi.requestedPermissions = null;
-            pi.requestedPermissionsFlags = null;
+        return cache != null ? cache.put(pp.getPackageName(), entry) : entry;
+    }
+
+    /*
+     * Returns the spoof cache of this snapshot, or null if this is the live computer.
+     */
+    @DexAdd
+    private HarukaSpoofCache getHarukaSpoofCache() {
+        if (getClass() != ComputerEngine.class)
+            return null;
+
+        HarukaSpoofCache cache = mHarukaSpoofCache;
+        if (cache == null) {
+            // Racing threads might both create a cache, but only one survives and
+            // the other one is just a few wasted lookups.
+            cache = new HarukaSpoofCache();
+            mHarukaSpoofCache = cache;
         }
+        return cache;
+    }
 
-        return pi;
+    /*
+     * Checks whether the package requests FAKE_PACKAGE_SIGNATURE in its manifest,
+     * without generating anything.
+     */
+    @DexAdd
+    static boolean declaresHarukaSpoofingPermission(AndroidPackageInternal pp) {
+        for (int i = 0; i < pp.getUsesPermissions().size(); i++) {
+            if (FAKE_PACKAGE_SIGNATURE_PERM.equals(pp.getUsesPermissions().get(i).getName()))
+                return true;
+        }
+        return false;
     }
 
 }
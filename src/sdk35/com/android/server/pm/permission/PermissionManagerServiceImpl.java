@@ -0,0 +1,26 @@
+package com.android.server.pm.permission;
+
+import android.os.UserHandle;
+import io.github.shomy.haruka.SpoofGrantState;
+import lanchon.dexpatcher.annotation.DexEdit;
+import lanchon.dexpatcher.annotation.DexWrap;
+
+@DexEdit(contentOnly = true)
+public class PermissionManagerServiceImpl {
+    /*
+     * Every change to the permission state of an app ends up here once applied: grants and
+     * revokes (from the user, the PermissionController or roles), flag updates and resets.
+     * So this is where the cached grant states of FAKE_PACKAGE_SIGNATURE are thrown away
+     * (see SpoofGrantState), rather than on each of those paths.
+     *
+     * It's called whether or not anyone listens, the listeners are only notified later on.
+     */
+    @DexEdit(contentOnly = true)
+    private static final class OnPermissionChangeListeners {
+        @DexWrap
+        public void onPermissionsChanged(int uid) {
+            onPermissionsChanged(uid);
+            SpoofGrantState.INSTANCE.invalidate(UserHandle.getUserId(uid));
+        }
+    }
+}